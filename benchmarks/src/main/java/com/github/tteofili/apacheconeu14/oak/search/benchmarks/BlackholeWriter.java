@@ -0,0 +1,61 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.tteofili.apacheconeu14.oak.search.benchmarks;
+
+import java.io.IOException;
+
+import com.github.tteofili.apacheconeu14.oak.search.nls.NLSIndexWriter;
+import com.github.tteofili.apacheconeu14.oak.search.util.PendingTexts;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.index.Term;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * {@link NLSIndexWriter} handing the docs to a {@link Blackhole} instead of Lucene, so that only the editor is measured
+ */
+class BlackholeWriter implements NLSIndexWriter {
+
+    private final Blackhole blackhole;
+
+    BlackholeWriter(Blackhole blackhole) {
+        this.blackhole = blackhole;
+    }
+
+    @Override
+    public void updateDocument(Term term, Document document) throws IOException {
+        blackhole.consume(term);
+        blackhole.consume(document);
+    }
+
+    @Override
+    public void deleteDocuments(Term... terms) throws IOException {
+        blackhole.consume(terms);
+    }
+
+    @Override
+    public void deleteAll() throws IOException {
+    }
+
+    @Override
+    public void afterOakCommit() {
+    }
+
+    @Override
+    public PendingTexts getPendingTexts() {
+        return null;
+    }
+}
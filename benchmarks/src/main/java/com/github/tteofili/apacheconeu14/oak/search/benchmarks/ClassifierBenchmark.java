@@ -0,0 +1,94 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.tteofili.apacheconeu14.oak.search.benchmarks;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import com.github.tteofili.apacheconeu14.oak.search.nls.NLSIndexNode;
+import com.github.tteofili.apacheconeu14.oak.search.nls.NLSQueryClassifier;
+import org.apache.lucene.classification.ClassificationResult;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.util.BytesRef;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Training and class assignment of the {@link NLSQueryClassifier} on a synthetic NLS index.
+ * Training normally runs in the background, it's measured by calling it directly.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(2)
+@State(Scope.Benchmark)
+public class ClassifierBenchmark {
+
+    @Param({"3", "4"})
+    private int levels;
+
+    private NLSIndexNode indexNode;
+
+    private IndexSearcher searcher;
+
+    private String[] queries;
+
+    private int next;
+
+    @Setup
+    public void setUp() throws Exception {
+        indexNode = SyntheticContent.createIndex(SyntheticContent.createTree(levels, 8));
+        searcher = indexNode.acquireSearcher();
+        Random random = new Random(SyntheticContent.SEED);
+        queries = new String[64];
+        for (int i = 0; i < queries.length; i++) {
+            queries[i] = SyntheticContent.sentence(random, 3);
+        }
+        if (!indexNode.getClassifier().awaitTraining(1, TimeUnit.MINUTES)) {
+            throw new IllegalStateException("no classifier model trained");
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        indexNode.releaseSearcher(searcher);
+        indexNode.close();
+    }
+
+    @Benchmark
+    public void train() {
+        indexNode.getClassifier().train();
+    }
+
+    @Benchmark
+    public ClassificationResult<BytesRef> assignClass() {
+        String query = queries[next];
+        next = (next + 1) % queries.length;
+        return indexNode.getClassifier().assignClass(query, searcher);
+    }
+}
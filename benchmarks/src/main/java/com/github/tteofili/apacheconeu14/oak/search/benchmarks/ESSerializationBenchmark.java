@@ -0,0 +1,75 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.tteofili.apacheconeu14.oak.search.benchmarks;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import com.github.tteofili.apacheconeu14.oak.search.es.ESDocumentSerializer;
+import org.apache.jackrabbit.oak.spi.state.ChildNodeEntry;
+import org.apache.jackrabbit.oak.spi.state.NodeState;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import static org.apache.jackrabbit.oak.commons.PathUtils.concat;
+
+/**
+ * Latency of the JSON serialization of synthetic nodes by {@link ESDocumentSerializer}, no Elasticsearch needed
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(2)
+@State(Scope.Benchmark)
+public class ESSerializationBenchmark {
+
+    private final List<String> paths = new ArrayList<String>();
+
+    private final List<NodeState> states = new ArrayList<NodeState>();
+
+    private int next;
+
+    @Setup
+    public void setUp() {
+        collect("/", SyntheticContent.createTree(3, 8));
+    }
+
+    private void collect(String path, NodeState state) {
+        paths.add(path);
+        states.add(state);
+        for (ChildNodeEntry child : state.getChildNodeEntries()) {
+            collect(concat(path, child.getName()), child.getNodeState());
+        }
+    }
+
+    @Benchmark
+    public byte[] serialize() throws Exception {
+        int i = next;
+        next = (next + 1) % paths.size();
+        return ESDocumentSerializer.serialize(paths.get(i), states.get(i));
+    }
+}
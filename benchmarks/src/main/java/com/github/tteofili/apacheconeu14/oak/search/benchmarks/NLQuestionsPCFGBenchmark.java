@@ -0,0 +1,70 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.tteofili.apacheconeu14.oak.search.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import com.github.tteofili.apacheconeu14.oak.search.nls.NLQuestionsPCFG;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Compares the compiled CKY parser of {@link NLQuestionsPCFG} with the reference one, on questions only and with
+ * the question cache disabled so that the parsers themselves are measured.
+ * Run with {@code -prof gc} for the memory allocated per question.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(value = 2, jvmArgsAppend = "-Dnls.questionCacheSize=0")
+@State(Scope.Benchmark)
+public class NLQuestionsPCFGBenchmark {
+
+    private NLQuestionsPCFG pcfg;
+
+    private int next;
+
+    @Setup
+    public void setUp() {
+        pcfg = new NLQuestionsPCFG();
+    }
+
+    private String nextQuestion() {
+        String question = SyntheticContent.QUESTIONS[next];
+        next = (next + 1) % SyntheticContent.QUESTIONS.length;
+        return question;
+    }
+
+    @Benchmark
+    public String reference() {
+        return pcfg.filterQuestionWithGrammar(nextQuestion());
+    }
+
+    @Benchmark
+    public String compiled() {
+        return pcfg.filterQuestion(nextQuestion());
+    }
+}
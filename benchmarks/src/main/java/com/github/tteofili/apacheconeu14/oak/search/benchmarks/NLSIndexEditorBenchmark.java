@@ -0,0 +1,100 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.tteofili.apacheconeu14.oak.search.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import com.github.tteofili.apacheconeu14.oak.search.nls.NLSIndexEditor;
+import org.apache.jackrabbit.oak.spi.commit.EditorDiff;
+import org.apache.jackrabbit.oak.spi.state.NodeBuilder;
+import org.apache.jackrabbit.oak.spi.state.NodeState;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import static org.apache.jackrabbit.oak.plugins.memory.EmptyNodeState.EMPTY_NODE;
+
+/**
+ * {@link NLSIndexEditor} over a deep tree, a chain of nodes each one with a few leaves, which stresses the
+ * computation of paths and ancestors: a commit adding the whole tree and a commit changing a leaf at each level.
+ * Run with {@code -prof gc} for the memory allocated per commit.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(2)
+@State(Scope.Benchmark)
+public class NLSIndexEditorBenchmark {
+
+    @Param({"200"})
+    private int depth;
+
+    @Param({"10"})
+    private int siblings;
+
+    private NodeState tree;
+
+    private NodeState changed;
+
+    @Setup
+    public void setUp() {
+        tree = createTree(depth, siblings);
+        NodeBuilder builder = tree.builder();
+        NodeBuilder node = builder;
+        for (int i = 0; i < depth; i++) {
+            node = node.child("level" + i);
+            node.child("leaf0").setProperty("jcr:title", "changed leaf at level " + i);
+        }
+        changed = builder.getNodeState();
+    }
+
+    /**
+     * @return a chain of nodes, each one with the given number of leaves
+     */
+    private static NodeState createTree(int depth, int siblings) {
+        NodeBuilder builder = EMPTY_NODE.builder();
+        NodeBuilder node = builder;
+        for (int i = 0; i < depth; i++) {
+            node = node.child("level" + i);
+            node.setProperty("jcr:title", "node at level " + i);
+            for (int j = 0; j < siblings; j++) {
+                node.child("leaf" + j).setProperty("jcr:title", "leaf " + j + " at level " + i);
+            }
+        }
+        return builder.getNodeState();
+    }
+
+    @Benchmark
+    public void addTree(Blackhole blackhole) throws Exception {
+        EditorDiff.process(new NLSIndexEditor(new BlackholeWriter(blackhole)), EMPTY_NODE, tree);
+    }
+
+    @Benchmark
+    public void changeLeaves(Blackhole blackhole) throws Exception {
+        EditorDiff.process(new NLSIndexEditor(new BlackholeWriter(blackhole)), tree, changed);
+    }
+}
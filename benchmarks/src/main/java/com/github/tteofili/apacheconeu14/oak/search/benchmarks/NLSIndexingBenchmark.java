@@ -0,0 +1,92 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.tteofili.apacheconeu14.oak.search.benchmarks;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import com.github.tteofili.apacheconeu14.oak.search.nls.NLSIndexEditor;
+import org.apache.jackrabbit.oak.spi.commit.EditorDiff;
+import org.apache.jackrabbit.oak.spi.state.NodeBuilder;
+import org.apache.jackrabbit.oak.spi.state.NodeState;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import static org.apache.jackrabbit.oak.plugins.memory.EmptyNodeState.EMPTY_NODE;
+
+/**
+ * Throughput of {@link NLSIndexEditor} over synthetic trees: a commit adding the whole tree and a commit changing
+ * one node out of a hundred. Documents are handed to a {@link Blackhole} instead of Lucene, so that only the
+ * editor (diff, filtering, document creation) is measured.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(2)
+@State(Scope.Benchmark)
+public class NLSIndexingBenchmark {
+
+    @Param({"3", "4"})
+    private int levels;
+
+    @Param({"8"})
+    private int children;
+
+    private NodeState tree;
+
+    private NodeState changed;
+
+    @Setup
+    public void setUp() {
+        tree = SyntheticContent.createTree(levels, children);
+        Random random = new Random(SyntheticContent.SEED);
+        NodeBuilder builder = tree.builder();
+        changeSomeNodes(builder, random);
+        changed = builder.getNodeState();
+    }
+
+    private static void changeSomeNodes(NodeBuilder node, Random random) {
+        for (String name : node.getChildNodeNames()) {
+            NodeBuilder child = node.getChildNode(name);
+            if (random.nextInt(100) == 0) {
+                child.setProperty("jcr:title", SyntheticContent.sentence(random, 4));
+            }
+            changeSomeNodes(child, random);
+        }
+    }
+
+    @Benchmark
+    public void addTree(Blackhole blackhole) throws Exception {
+        EditorDiff.process(new NLSIndexEditor(new BlackholeWriter(blackhole)), EMPTY_NODE, tree);
+    }
+
+    @Benchmark
+    public void changeNodes(Blackhole blackhole) throws Exception {
+        EditorDiff.process(new NLSIndexEditor(new BlackholeWriter(blackhole)), tree, changed);
+    }
+}
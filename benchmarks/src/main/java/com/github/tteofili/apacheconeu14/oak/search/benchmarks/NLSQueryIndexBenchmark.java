@@ -0,0 +1,102 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.tteofili.apacheconeu14.oak.search.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import com.github.tteofili.apacheconeu14.oak.search.nls.IndexUtils;
+import com.github.tteofili.apacheconeu14.oak.search.nls.NLSIndexNode;
+import com.github.tteofili.apacheconeu14.oak.search.nls.NLSQueryIndex;
+import org.apache.jackrabbit.oak.query.QueryEngineSettings;
+import org.apache.jackrabbit.oak.query.ast.Operator;
+import org.apache.jackrabbit.oak.query.ast.SelectorImpl;
+import org.apache.jackrabbit.oak.query.index.FilterImpl;
+import org.apache.jackrabbit.oak.spi.query.Cursor;
+import org.apache.jackrabbit.oak.spi.query.Filter;
+import org.apache.jackrabbit.oak.spi.query.IndexRow;
+import org.apache.jackrabbit.oak.spi.query.PropertyValues;
+import org.apache.jackrabbit.oak.spi.state.NodeState;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import static org.mockito.Mockito.mock;
+
+/**
+ * End to end latency of {@link NLSQueryIndex#query(Filter, NodeState)} on a synthetic index: question filtering,
+ * classification, search and iteration over all the rows of the cursor, reading their path and score
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(2)
+@State(Scope.Benchmark)
+public class NLSQueryIndexBenchmark {
+
+    @Param({"what is the repository", "repository admin"})
+    private String query;
+
+    @Param({"/", "/node0"})
+    private String path;
+
+    private NLSIndexNode indexNode;
+
+    private NLSQueryIndex queryIndex;
+
+    private NodeState root;
+
+    private Filter filter;
+
+    @Setup
+    public void setUp() throws Exception {
+        root = SyntheticContent.createTree(4, 8);
+        indexNode = SyntheticContent.createIndex(root);
+        queryIndex = new NLSQueryIndex(indexNode, IndexUtils.PAGE_SIZE, IndexUtils.MAX_PAGE_SIZE);
+        FilterImpl filterImpl = new FilterImpl(mock(SelectorImpl.class), "", new QueryEngineSettings());
+        if (!"/".equals(path)) {
+            filterImpl.restrictPath(path, Filter.PathRestriction.ALL_CHILDREN);
+        }
+        filterImpl.restrictProperty("nls", Operator.EQUAL, PropertyValues.newString(query));
+        filter = filterImpl;
+    }
+
+    @TearDown
+    public void tearDown() {
+        indexNode.close();
+    }
+
+    @Benchmark
+    public void query(Blackhole blackhole) {
+        Cursor cursor = queryIndex.query(filter, root);
+        while (cursor.hasNext()) {
+            IndexRow row = cursor.next();
+            blackhole.consume(row.getPath());
+            blackhole.consume(row.getValue("jcr:score"));
+        }
+    }
+}
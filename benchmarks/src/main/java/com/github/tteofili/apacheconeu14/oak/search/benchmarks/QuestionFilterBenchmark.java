@@ -0,0 +1,79 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.tteofili.apacheconeu14.oak.search.benchmarks;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import com.github.tteofili.apacheconeu14.oak.search.nls.NLQuestionsPCFG;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Latency of {@link NLQuestionsPCFG#filterQuestion(String)} over a mix of questions and keyword queries, with the
+ * question cache enabled (the default) and disabled, which measures the parser itself
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(2)
+@State(Scope.Benchmark)
+public class QuestionFilterBenchmark {
+
+    private NLQuestionsPCFG pcfg;
+
+    private String[] sentences;
+
+    private int next;
+
+    @Setup
+    public void setUp() {
+        pcfg = new NLQuestionsPCFG();
+        Random random = new Random(SyntheticContent.SEED);
+        sentences = new String[64];
+        for (int i = 0; i < sentences.length; i++) {
+            sentences[i] = i % 2 == 0 ? SyntheticContent.QUESTIONS[random.nextInt(SyntheticContent.QUESTIONS.length)]
+                    : SyntheticContent.sentence(random, 3);
+        }
+    }
+
+    private String nextSentence() {
+        String sentence = sentences[next];
+        next = (next + 1) % sentences.length;
+        return sentence;
+    }
+
+    @Benchmark
+    public String filterQuestion() {
+        return pcfg.filterQuestion(nextSentence());
+    }
+
+    @Benchmark
+    @Fork(value = 2, jvmArgsAppend = "-Dnls.questionCacheSize=0")
+    public String filterQuestionUncached() {
+        return pcfg.filterQuestion(nextSentence());
+    }
+}
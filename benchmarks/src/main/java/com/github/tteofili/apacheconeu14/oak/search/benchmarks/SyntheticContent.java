@@ -0,0 +1,106 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.tteofili.apacheconeu14.oak.search.benchmarks;
+
+import java.util.Calendar;
+import java.util.Random;
+import java.util.TimeZone;
+
+import com.github.tteofili.apacheconeu14.oak.search.nls.IndexUtils;
+import com.github.tteofili.apacheconeu14.oak.search.nls.NLSIndexEditor;
+import com.github.tteofili.apacheconeu14.oak.search.nls.NLSIndexNode;
+import org.apache.jackrabbit.oak.api.Type;
+import org.apache.jackrabbit.oak.spi.commit.EditorDiff;
+import org.apache.jackrabbit.oak.spi.state.NodeBuilder;
+import org.apache.jackrabbit.oak.spi.state.NodeState;
+import org.apache.jackrabbit.util.ISO8601;
+import org.apache.lucene.store.RAMDirectory;
+
+import static org.apache.jackrabbit.oak.plugins.memory.EmptyNodeState.EMPTY_NODE;
+
+/**
+ * Generates the content the benchmarks run on, always from the same seed so that runs on different
+ * commits are comparable
+ */
+final class SyntheticContent {
+
+    static final long SEED = 42;
+
+    static final String[] NODE_TYPES = new String[]{"nt:unstructured", "nt:folder", "oak:Unstructured"};
+
+    static final String[] QUESTIONS = new String[]{"what is the repository", "who is the admin",
+            "what do you see there", "how do you nicely work there", "which do they badly see there"};
+
+    private static final String[] WORDS = new String[]{"repository", "admin", "search", "index", "query", "node",
+            "content", "apache", "oak", "lucene", "elasticsearch", "question", "language", "tree", "property",
+            "commit", "document", "path", "text", "page", "asset", "user", "group", "site", "version"};
+
+    private SyntheticContent() {
+    }
+
+    /**
+     * @return a balanced tree with the given number of levels below the root, each node having the given number
+     * of children
+     */
+    static NodeState createTree(int levels, int children) {
+        Random random = new Random(SEED);
+        NodeBuilder builder = EMPTY_NODE.builder();
+        addChildren(builder, levels, children, random);
+        return builder.getNodeState();
+    }
+
+    private static void addChildren(NodeBuilder parent, int levels, int children, Random random) {
+        if (levels == 0) {
+            return;
+        }
+        for (int i = 0; i < children; i++) {
+            NodeBuilder child = parent.child("node" + i);
+            setProperties(child, random);
+            addChildren(child, levels - 1, children, random);
+        }
+    }
+
+    static void setProperties(NodeBuilder node, Random random) {
+        node.setProperty("jcr:primaryType", NODE_TYPES[random.nextInt(NODE_TYPES.length)], Type.NAME);
+        node.setProperty("jcr:title", sentence(random, 4));
+        node.setProperty("jcr:description", sentence(random, 16));
+        node.setProperty("count", (long) random.nextInt(10000));
+        Calendar created = Calendar.getInstance(TimeZone.getTimeZone("UTC"));
+        created.setTimeInMillis(1400000000000L + random.nextInt(Integer.MAX_VALUE) * 1000L);
+        node.setProperty("jcr:created", ISO8601.format(created), Type.DATE);
+    }
+
+    static String sentence(Random random, int words) {
+        StringBuilder sentence = new StringBuilder();
+        for (int i = 0; i < words; i++) {
+            if (i > 0) {
+                sentence.append(' ');
+            }
+            sentence.append(WORDS[random.nextInt(WORDS.length)]);
+        }
+        return sentence.toString();
+    }
+
+    /**
+     * @return an in-memory NLS index containing the given tree
+     */
+    static NLSIndexNode createIndex(NodeState tree) throws Exception {
+        NLSIndexNode indexNode = new NLSIndexNode(new RAMDirectory(), 1000, 0, 0, IndexUtils.SEARCHER_LEASE);
+        EditorDiff.process(new NLSIndexEditor(indexNode), EMPTY_NODE, tree);
+        return indexNode;
+    }
+}
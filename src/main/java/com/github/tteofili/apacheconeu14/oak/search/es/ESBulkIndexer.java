@@ -0,0 +1,212 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.tteofili.apacheconeu14.oak.search.es;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import com.github.tteofili.apacheconeu14.oak.search.util.IndexingRules;
+import com.github.tteofili.apacheconeu14.oak.search.util.PendingTexts;
+import org.apache.jackrabbit.oak.spi.state.NodeState;
+import org.elasticsearch.action.bulk.BulkItemResponse;
+import org.elasticsearch.action.bulk.BulkRequestBuilder;
+import org.elasticsearch.action.bulk.BulkResponse;
+import org.elasticsearch.client.Client;
+import org.elasticsearch.index.query.FilterBuilders;
+import org.elasticsearch.index.query.QueryBuilders;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import static com.github.tteofili.apacheconeu14.oak.search.es.ESUtils.ANCESTORS;
+import static com.github.tteofili.apacheconeu14.oak.search.es.ESUtils.INDEX_NAME;
+import static com.github.tteofili.apacheconeu14.oak.search.es.ESUtils.TYPE_NAME;
+
+/**
+ * Collects the index and delete actions of a commit and sends them to Elasticsearch as bulk requests.
+ * A bulk request is sent as soon as it reaches {@link #MAX_ACTIONS} actions or {@link #MAX_BYTES} bytes,
+ * whatever is left is sent on {@link #flush()}.
+ * Deleted subtrees are removed by a single delete by query per flush, sent after the bulk request.
+ * Nodes indexed while the text of their binaries was still being extracted are indexed again, with a bulk
+ * request of their own, once the text is ready (see {@link PendingTexts}).
+ */
+public class ESBulkIndexer {
+
+    public static final int MAX_ACTIONS = 1000;
+
+    public static final long MAX_BYTES = 5 * 1024 * 1024;
+
+    /**
+     * shared by all the indexers, as they all write the same index
+     */
+    private static final PendingTexts PENDING_TEXTS = new PendingTexts();
+
+    private final Logger log = LoggerFactory.getLogger(getClass());
+
+    private final Client client;
+
+    private final List<String> deletedSubtrees = new ArrayList<String>();
+
+    /**
+     * the nodes in the current bulk, tracked by {@link #PENDING_TEXTS} once sent
+     */
+    private final List<PendingTexts.Entry> indexed = new ArrayList<PendingTexts.Entry>();
+
+    private BulkRequestBuilder bulk;
+
+    private int failures;
+
+    public ESBulkIndexer(Client client) {
+        this.client = client;
+    }
+
+    public void index(String path, NodeState state) {
+        index(path, state, IndexingRules.ALL);
+    }
+
+    /**
+     * indexes the node with the properties selected by the given rules
+     */
+    public void index(String path, NodeState state, final IndexingRules rules) {
+        if (isInDeletedSubtree(path)) {
+            // the subtree has to be deleted before the node gets indexed again
+            flush();
+        }
+        try {
+            PendingTexts.Entry entry = PENDING_TEXTS.indexing(path, state, new PendingTexts.Indexer() {
+                @Override
+                public void index(String path, NodeState state) {
+                    ESBulkIndexer indexer = new ESBulkIndexer(client);
+                    indexer.index(path, state, rules);
+                    indexer.flush();
+                }
+            });
+            getBulk().add(client.prepareIndex(INDEX_NAME, TYPE_NAME, path).setSource(ESDocumentSerializer.serialize(path, state, rules, entry)));
+            indexed.add(entry);
+            flushIfFull();
+        } catch (IOException e) {
+            failures++;
+            log.error("failed serializing doc {}", path, e);
+        }
+    }
+
+    public void delete(String path) {
+        PENDING_TEXTS.deleted(path);
+        getBulk().add(client.prepareDelete(INDEX_NAME, TYPE_NAME, path));
+        flushIfFull();
+    }
+
+    /**
+     * deletes the doc at the given path and, with a single delete by query on the ancestors for all the subtrees
+     * deleted before the next flush, the docs of its descendants
+     */
+    public void deleteSubtree(String path) {
+        delete(path);
+        PENDING_TEXTS.subtreeDeleted(path);
+        deletedSubtrees.add(path);
+        if (deletedSubtrees.size() >= MAX_ACTIONS) {
+            flush();
+        }
+    }
+
+    /**
+     * sends the pending actions, failures are reported for each failed item
+     */
+    public void flush() {
+        flushBulk();
+        flushDeletedSubtrees();
+    }
+
+    /**
+     * @return the number of actions which failed since the last call
+     */
+    public int consumeFailures() {
+        int failed = failures;
+        failures = 0;
+        return failed;
+    }
+
+    private void flushBulk() {
+        if (bulk == null || bulk.numberOfActions() == 0) {
+            return;
+        }
+        BulkRequestBuilder request = bulk;
+        bulk = null;
+        ESUtils.ensureIndex();
+        try {
+            BulkResponse response = request.execute().actionGet();
+            if (response.hasFailures()) {
+                for (BulkItemResponse item : response.getItems()) {
+                    if (item.isFailed()) {
+                        failures++;
+                        log.error("failed {} of doc {} : {}", item.getOpType(), item.getId(), item.getFailureMessage());
+                    }
+                }
+            }
+            log.debug("sent {} actions in {}ms", response.getItems().length, response.getTookInMillis());
+            ESUtils.getStatistics().invalidate();
+        } catch (Exception e) {
+            failures += request.numberOfActions();
+            log.error("failed sending bulk request of {} actions", request.numberOfActions(), e);
+        }
+        // only now the docs can't overwrite the ones indexed again with their text
+        for (PendingTexts.Entry entry : indexed) {
+            PENDING_TEXTS.indexed(entry);
+        }
+        indexed.clear();
+    }
+
+    private void flushDeletedSubtrees() {
+        if (deletedSubtrees.isEmpty()) {
+            return;
+        }
+        List<String> paths = new ArrayList<String>(deletedSubtrees);
+        deletedSubtrees.clear();
+        try {
+            client.prepareDeleteByQuery(INDEX_NAME).setTypes(TYPE_NAME)
+                    .setQuery(QueryBuilders.constantScoreQuery(FilterBuilders.termsFilter(ANCESTORS, paths)))
+                    .execute().actionGet();
+            log.debug("deleted {} subtrees", paths.size());
+            ESUtils.getStatistics().invalidate();
+        } catch (Exception e) {
+            failures += paths.size();
+            log.error("failed deleting subtrees {}", paths, e);
+        }
+    }
+
+    private boolean isInDeletedSubtree(String path) {
+        for (String deleted : deletedSubtrees) {
+            if (path.equals(deleted) || (path.startsWith(deleted) && path.charAt(deleted.length()) == '/')) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private BulkRequestBuilder getBulk() {
+        if (bulk == null) {
+            bulk = client.prepareBulk();
+        }
+        return bulk;
+    }
+
+    private void flushIfFull() {
+        if (bulk.numberOfActions() >= MAX_ACTIONS || bulk.request().estimatedSizeInBytes() >= MAX_BYTES) {
+            flush();
+        }
+    }
+}
@@ -0,0 +1,183 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.tteofili.apacheconeu14.oak.search.es;
+
+import javax.jcr.PropertyType;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import com.github.tteofili.apacheconeu14.oak.search.util.IndexingRules;
+import com.github.tteofili.apacheconeu14.oak.search.util.TextExtractionService;
+import org.apache.jackrabbit.oak.api.Blob;
+import org.apache.jackrabbit.oak.api.PropertyState;
+import org.apache.jackrabbit.oak.api.Type;
+import org.apache.jackrabbit.oak.spi.state.NodeState;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.common.xcontent.XContentFactory;
+
+import static com.github.tteofili.apacheconeu14.oak.search.es.ESUtils.ANCESTORS;
+import static com.github.tteofili.apacheconeu14.oak.search.es.ESUtils.DEPTH;
+import static com.github.tteofili.apacheconeu14.oak.search.es.ESUtils.IGNORE_ABOVE;
+import static com.github.tteofili.apacheconeu14.oak.search.es.ESUtils.PATH;
+import static com.github.tteofili.apacheconeu14.oak.search.es.ESUtils.TRUNCATED;
+import static org.apache.jackrabbit.oak.commons.PathUtils.denotesRoot;
+import static org.apache.jackrabbit.oak.commons.PathUtils.getDepth;
+import static org.apache.jackrabbit.oak.commons.PathUtils.getParentPath;
+
+/**
+ * Serializes {@link NodeState}s into JSON documents for Elasticsearch.
+ * Each Oak type is written as the matching JSON type (numbers, booleans, strings), multi valued properties
+ * are written as arrays and binaries are written as the text extracted by the {@link TextExtractionService}.
+ * Besides the path, the ancestor paths and the depth of the node are written for path restrictions, and the
+ * names of the properties whose values are too long for the untokenized copies of string fields.
+ * The JSON is streamed into a buffer which is reused by each thread.
+ */
+public class ESDocumentSerializer {
+
+    /**
+     * buffers grown beyond this size are not kept for the next document
+     */
+    private static final int MAX_RETAINED_BUFFER_SIZE = 1024 * 1024;
+
+    private static final ThreadLocal<ByteArrayOutputStream> BUFFER = new ThreadLocal<ByteArrayOutputStream>() {
+        @Override
+        protected ByteArrayOutputStream initialValue() {
+            return new ByteArrayOutputStream(4096);
+        }
+    };
+
+    private ESDocumentSerializer() {
+    }
+
+    public static byte[] serialize(String path, NodeState state) throws IOException {
+        return serialize(path, state, IndexingRules.ALL);
+    }
+
+    public static byte[] serialize(String path, NodeState state, IndexingRules rules) throws IOException {
+        return serialize(path, state, rules, null);
+    }
+
+    /**
+     * @param callback told about the texts of binaries which aren't extracted yet, may be {@code null}
+     * @return the JSON document of the node, with the properties indexed according to the given rules
+     */
+    public static byte[] serialize(String path, NodeState state, IndexingRules rules,
+                                   TextExtractionService.Callback callback) throws IOException {
+        ByteArrayOutputStream buffer = BUFFER.get();
+        buffer.reset();
+        try {
+            XContentBuilder builder = XContentFactory.jsonBuilder(buffer);
+            builder.startObject();
+            builder.field(PATH, path);
+            builder.startArray(ANCESTORS);
+            for (String ancestor = path; !denotesRoot(ancestor); ) {
+                ancestor = getParentPath(ancestor);
+                builder.value(ancestor);
+            }
+            builder.endArray();
+            builder.field(DEPTH, getDepth(path));
+            List<String> truncated = null;
+            for (PropertyState property : state.getProperties()) {
+                if (rules.isIndexed(property.getName()) && writeProperty(builder, property, callback)) {
+                    if (truncated == null) {
+                        truncated = new ArrayList<String>(1);
+                    }
+                    truncated.add(property.getName());
+                }
+            }
+            if (truncated != null) {
+                builder.field(TRUNCATED, truncated);
+            }
+            builder.endObject();
+            builder.close();
+            return buffer.toByteArray();
+        } finally {
+            if (buffer.size() > MAX_RETAINED_BUFFER_SIZE) {
+                BUFFER.remove();
+            }
+        }
+    }
+
+    /**
+     * @return {@code true} if a string value is too long for the untokenized copy of the field
+     */
+    private static boolean writeProperty(XContentBuilder builder, PropertyState property,
+                                         TextExtractionService.Callback callback) throws IOException {
+        if (property.getType().tag() == PropertyType.BINARY) {
+            return writeText(builder, property, callback);
+        }
+        boolean truncated = false;
+        if (property.isArray()) {
+            builder.startArray(property.getName());
+            for (int i = 0; i < property.count(); i++) {
+                truncated |= writeValue(builder, property, i);
+            }
+            builder.endArray();
+        } else {
+            builder.field(property.getName());
+            truncated = writeValue(builder, property, 0);
+        }
+        return truncated;
+    }
+
+    /**
+     * writes the text extracted from the binaries, if any, the ones still being extracted are left out
+     */
+    private static boolean writeText(XContentBuilder builder, PropertyState property,
+                                     TextExtractionService.Callback callback) throws IOException {
+        List<String> texts = new ArrayList<String>(property.count());
+        boolean truncated = false;
+        for (Blob blob : property.getValue(Type.BINARIES)) {
+            String text = TextExtractionService.getDefault().getText(blob, callback);
+            if (text != null) {
+                texts.add(text);
+                truncated |= text.length() > IGNORE_ABOVE;
+            }
+        }
+        if (texts.isEmpty()) {
+            return false;
+        }
+        if (property.isArray()) {
+            builder.field(property.getName(), texts);
+        } else {
+            builder.field(property.getName(), texts.get(0));
+        }
+        return truncated;
+    }
+
+    private static boolean writeValue(XContentBuilder builder, PropertyState property, int index) throws IOException {
+        switch (property.getType().tag()) {
+            case PropertyType.LONG:
+                builder.value(property.getValue(Type.LONG, index).longValue());
+                return false;
+            case PropertyType.DOUBLE:
+                builder.value(property.getValue(Type.DOUBLE, index).doubleValue());
+                return false;
+            case PropertyType.BOOLEAN:
+                builder.value(property.getValue(Type.BOOLEAN, index).booleanValue());
+                return false;
+            default:
+                // strings, names, paths, references, uris and ISO8601 dates. Decimals too, a double would lose
+                // their precision: their string form (as Oak converts them) is kept as is in the raw subfield
+                String value = property.getValue(Type.STRING, index);
+                builder.value(value);
+                return value.length() > IGNORE_ABOVE;
+        }
+    }
+}
@@ -16,45 +16,64 @@
  */
 package com.github.tteofili.apacheconeu14.oak.search.es;
 
+import com.github.tteofili.apacheconeu14.oak.search.util.IndexingRules;
+import com.github.tteofili.apacheconeu14.oak.search.util.PathFilter;
 import org.apache.jackrabbit.oak.api.CommitFailedException;
 import org.apache.jackrabbit.oak.api.PropertyState;
 import org.apache.jackrabbit.oak.plugins.index.IndexEditor;
 import org.apache.jackrabbit.oak.spi.commit.Editor;
+import org.apache.jackrabbit.oak.spi.state.NodeBuilder;
 import org.apache.jackrabbit.oak.spi.state.NodeState;
-import org.elasticsearch.action.index.IndexResponse;
 import org.elasticsearch.client.Client;
-import org.slf4j.Logger;
-import org.slf4j.LoggerFactory;
 
 import static org.apache.jackrabbit.oak.commons.PathUtils.concat;
+import static org.apache.jackrabbit.oak.plugins.index.IndexConstants.REINDEX_PROPERTY_NAME;
+import static org.apache.jackrabbit.oak.plugins.memory.EmptyNodeState.EMPTY_NODE;
+import static org.apache.jackrabbit.oak.plugins.memory.EmptyNodeState.MISSING_NODE;
 
 /**
- * Demo code for indexing data into Elasticsearch
+ * Demo code for indexing data into Elasticsearch, all the changes of a commit are sent
+ * through one {@link com.github.tteofili.apacheconeu14.oak.search.es.ESBulkIndexer} which is flushed
+ * when the root editor leaves.
+ * In async mode changes are only put in an {@link com.github.tteofili.apacheconeu14.oak.search.es.ESIndexingQueue}
+ * and sent to Elasticsearch by its workers.
+ * Only the nodes matching the {@link IndexingRules} of the definition are indexed, excluded subtrees are
+ * not even traversed.
  */
 public class ESIndexEditor implements IndexEditor {
 
-    private final Logger log = LoggerFactory.getLogger(getClass());
-
-    private final Client client;
+    /**
+     * state of the commit shared by all the editors
+     */
+    private final Context context;
     private final ESIndexEditor parent;
     private final String name;
+    private final PathFilter.Node filter;
 
     private boolean changed;
 
+    /**
+     * computed on first use, from the (cached) path of the parent
+     */
     private String path;
 
     public ESIndexEditor(Client client) {
-        this.client = client;
-        path = "/";
-        parent = null;
-        name = null;
+        this(client, null, null, IndexingRules.from(EMPTY_NODE));
+    }
+
+    public ESIndexEditor(Client client, ESIndexingQueue queue, NodeBuilder definition, IndexingRules rules) {
+        this.context = new Context(new ESBulkIndexer(client), queue, definition, rules);
+        this.filter = rules.getPathFilter().getRoot();
+        this.parent = null;
+        this.name = null;
+        this.path = "/";
     }
 
-    public ESIndexEditor(ESIndexEditor parent, String name) {
-        this.client = parent.client;
-        this.path = null;
+    private ESIndexEditor(ESIndexEditor parent, String name, PathFilter.Node filter) {
+        this.context = parent.context;
         this.parent = parent;
         this.name = name;
+        this.filter = filter;
     }
 
     @Override
@@ -63,7 +82,7 @@ public class ESIndexEditor implements IndexEditor {
     }
 
     private String getPath() {
-        if (parent != null && name != null) {
+        if (path == null) {
             path = concat(parent.getPath(), name);
         }
         return path;
@@ -71,64 +90,96 @@ public class ESIndexEditor implements IndexEditor {
 
     @Override
     public void leave(NodeState before, NodeState after) throws CommitFailedException {
-        if (changed) {
-            String source = jsonFromState(after);
-            try {
-                IndexResponse response = client.prepareIndex("oak", "node", getPath())
-                        .setSource(source)
-                        .execute()
-                        .actionGet();
-
-                if (response.isCreated()) {
-                    log.info("indexed doc {}", source);
+        if (changed && filter.getResult() == PathFilter.Result.INCLUDE) {
+            IndexingRules rules = context.rules;
+            ESIndexingQueue queue = context.queue;
+            if (rules.isIndexed(after)) {
+                if (queue == null) {
+                    context.indexer.index(getPath(), after, rules);
+                } else if (!queue.offer(getPath(), after, rules) && queue.getBackpressure() == ESIndexingQueue.Backpressure.SPILL) {
+                    // the queue is full, spill the update over to this commit's bulk
+                    context.indexer.index(getPath(), after, rules);
+                }
+            } else if (rules.isIndexed(before)) {
+                // not of an indexed type anymore, ordered with the pending updates of the path in async mode
+                if (queue == null) {
+                    context.indexer.delete(getPath());
+                } else if (!queue.offerDelete(getPath()) && queue.getBackpressure() == ESIndexingQueue.Backpressure.SPILL) {
+                    context.indexer.delete(getPath());
                 }
-            } catch (Exception e) {
-                log.error("failed indexing {}", after);
             }
         }
-    }
-
-    private String jsonFromState(NodeState after) {
-        StringBuilder json = new StringBuilder("{" +
-                "\"path\":\"" + getPath() + "\"");
-
-        for (PropertyState ps : after.getProperties()) {
-            json.append(",\"").append(ps.getName()).append("\":\"").append(ps.getValue(ps.getType())).append("\"");
+        if (parent == null) {
+            context.indexer.flush();
+            if (context.queue != null && context.definition != null && context.queue.consumeReindexRequired()) {
+                context.definition.setProperty(REINDEX_PROPERTY_NAME, true);
+            }
         }
-        json.append("}");
-
-
-        return json.toString();
     }
 
     @Override
     public void propertyAdded(PropertyState propertyState) throws CommitFailedException {
-        changed = true;
+        changed |= context.rules.isRelevant(propertyState.getName());
     }
 
     @Override
     public void propertyChanged(PropertyState before, PropertyState after) throws CommitFailedException {
-        changed = true;
+        changed |= context.rules.isRelevant(after.getName());
     }
 
     @Override
     public void propertyDeleted(PropertyState propertyState) throws CommitFailedException {
-        changed = true;
+        changed |= context.rules.isRelevant(propertyState.getName());
     }
 
     @Override
     public Editor childNodeAdded(String name, NodeState nodeState) throws CommitFailedException {
-        return new ESIndexEditor(this, name);
+        return getChildEditor(name);
     }
 
     @Override
     public Editor childNodeChanged(String name, NodeState before, NodeState after) throws CommitFailedException {
-        return new ESIndexEditor(this, name);
+        return getChildEditor(name);
+    }
+
+    /**
+     * @return an editor for the child, {@code null} if its whole subtree is excluded
+     */
+    private ESIndexEditor getChildEditor(String name) {
+        if (IndexingRules.isHidden(name)) {
+            return null;
+        }
+        PathFilter.Node childFilter = filter.getChild(name);
+        return childFilter.getResult() != PathFilter.Result.EXCLUDE ? new ESIndexEditor(this, name, childFilter) : null;
     }
 
     @Override
-    public Editor childNodeDeleted(String s, NodeState nodeState) throws CommitFailedException {
-        // TODO : implement deletion
+    public Editor childNodeDeleted(String name, NodeState before) throws CommitFailedException {
+        if (IndexingRules.isHidden(name) || filter.getChild(name).getResult() == PathFilter.Result.EXCLUDE) {
+            return null;
+        }
+        // the whole subtree goes with a single delete, no need to visit it
+        String deletedPath = concat(getPath(), name);
+        ESIndexingQueue queue = context.queue;
+        if (queue == null) {
+            context.indexer.deleteSubtree(deletedPath);
+        } else if (!queue.offer(deletedPath, MISSING_NODE) && queue.getBackpressure() == ESIndexingQueue.Backpressure.SPILL) {
+            context.indexer.deleteSubtree(deletedPath);
+        }
         return null;
     }
+
+    private static class Context {
+        private final ESBulkIndexer indexer;
+        private final ESIndexingQueue queue;
+        private final NodeBuilder definition;
+        private final IndexingRules rules;
+
+        private Context(ESBulkIndexer indexer, ESIndexingQueue queue, NodeBuilder definition, IndexingRules rules) {
+            this.indexer = indexer;
+            this.queue = queue;
+            this.definition = definition;
+            this.rules = rules;
+        }
+    }
 }
@@ -17,33 +17,137 @@
 package com.github.tteofili.apacheconeu14.oak.search.es;
 
 import javax.annotation.Nonnull;
+import javax.management.MalformedObjectNameException;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
 
+import com.github.tteofili.apacheconeu14.oak.search.util.IndexDefinitions;
+import com.github.tteofili.apacheconeu14.oak.search.util.IndexingRules;
 import org.apache.felix.scr.annotations.Component;
+import org.apache.felix.scr.annotations.Deactivate;
 import org.apache.felix.scr.annotations.Service;
 import org.apache.jackrabbit.oak.api.CommitFailedException;
+import org.apache.jackrabbit.oak.api.PropertyState;
+import org.apache.jackrabbit.oak.api.Type;
 import org.apache.jackrabbit.oak.plugins.index.IndexEditorProvider;
 import org.apache.jackrabbit.oak.plugins.index.IndexUpdateCallback;
 import org.apache.jackrabbit.oak.spi.commit.Editor;
 import org.apache.jackrabbit.oak.spi.state.NodeBuilder;
 import org.apache.jackrabbit.oak.spi.state.NodeState;
 import org.elasticsearch.client.Client;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import static org.apache.jackrabbit.oak.plugins.index.IndexConstants.ASYNC_PROPERTY_NAME;
+import static org.apache.jackrabbit.oak.plugins.index.IndexConstants.REINDEX_PROPERTY_NAME;
 
 /**
- * provider for {@link com.github.tteofili.apacheconeu14.oak.search.es.ESIndexEditor}
+ * provider for {@link com.github.tteofili.apacheconeu14.oak.search.es.ESIndexEditor}.
+ * Index definitions having the {@code async} property get editors which only enqueue changes into an
+ * {@link com.github.tteofili.apacheconeu14.oak.search.es.ESIndexingQueue} of their own, configured by the
+ * {@code queueSize}, {@code workers} and {@code backpressure} (block, drop or spill) properties of the definition
+ * and registered as an MBean.
  */
 @Component(immediate = true)
 @Service(value = IndexEditorProvider.class)
 public class ESIndexEditorProvider implements IndexEditorProvider {
+
+    private static final int DEFAULT_QUEUE_SIZE = 10000;
+    private static final int DEFAULT_WORKERS = 2;
+
+    private final Logger log = LoggerFactory.getLogger(getClass());
+
+    /**
+     * the indexing queues, by unique id of their definition
+     */
+    private final Map<String, ESIndexingQueue> queues = new HashMap<String, ESIndexingQueue>();
+
     @Override
     public Editor getIndexEditor(@Nonnull String type, @Nonnull NodeBuilder nodeBuilder, @Nonnull NodeState nodeState, @Nonnull IndexUpdateCallback indexUpdateCallback) throws CommitFailedException {
+        if (!"es".equals(type)) {
+            return null;
+        }
         Thread thread = Thread.currentThread();
         ClassLoader loader = thread.getContextClassLoader();
         thread.setContextClassLoader(Client.class.getClassLoader());
         try {
-            return "es".equals(type) ? new ESIndexEditor(ESUtils.getClient()) : null;
+            IndexingRules rules = IndexingRules.from(nodeBuilder.getNodeState());
+            if (nodeBuilder.hasProperty(ASYNC_PROPERTY_NAME)) {
+                return new ESIndexEditor(ESUtils.getClient(), getQueue(nodeBuilder), nodeBuilder, rules);
+            }
+            return new ESIndexEditor(ESUtils.getClient(), null, null, rules);
         } finally {
             thread.setContextClassLoader(loader);
         }
 
     }
+
+    /**
+     * @return the indexing queue of the given definition, created on first use and again when its
+     * configuration changes
+     */
+    public synchronized ESIndexingQueue getQueue(NodeBuilder definition) {
+        String id = IndexDefinitions.getUniqueId(definition);
+        String backpressureName = definition.getString("backpressure");
+        ESIndexingQueue.Backpressure backpressure = ESIndexingQueue.Backpressure.BLOCK;
+        if (backpressureName != null) {
+            try {
+                backpressure = ESIndexingQueue.Backpressure.valueOf(backpressureName.toUpperCase(Locale.ENGLISH));
+            } catch (IllegalArgumentException e) {
+                log.warn("unknown backpressure {} of indexing queue {}, blocking instead", backpressureName, id);
+            }
+        }
+        int capacity = getInt(definition, "queueSize", DEFAULT_QUEUE_SIZE);
+        int workers = getInt(definition, "workers", DEFAULT_WORKERS);
+        ESIndexingQueue queue = queues.get(id);
+        if (queue != null && (queue.getCapacity() != capacity || queue.getWorkerCount() != workers
+                || queue.getBackpressure() != backpressure)) {
+            // the updates still queued are lost
+            if (queue.getSize() > 0) {
+                definition.setProperty(REINDEX_PROPERTY_NAME, true);
+            }
+            close(id, queue);
+            queue = null;
+        }
+        if (queue == null) {
+            queue = new ESIndexingQueue(ESUtils.getClient(), capacity, workers, backpressure);
+            queues.put(id, queue);
+            try {
+                ManagementFactory.getPlatformMBeanServer().registerMBean(queue, getObjectName(id));
+            } catch (Exception e) {
+                log.warn("could not register the MBean of indexing queue {}", id, e);
+            }
+        }
+        return queue;
+    }
+
+    @Deactivate
+    public synchronized void deactivate() {
+        for (Map.Entry<String, ESIndexingQueue> entry : queues.entrySet()) {
+            close(entry.getKey(), entry.getValue());
+        }
+        queues.clear();
+    }
+
+    private void close(String id, ESIndexingQueue queue) {
+        queue.close();
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(getObjectName(id));
+        } catch (Exception e) {
+            log.debug("could not unregister the MBean of indexing queue {}", id, e);
+        }
+    }
+
+    private static ObjectName getObjectName(String id) throws MalformedObjectNameException {
+        return new ObjectName("com.github.tteofili.apacheconeu14.oak.search:type=ESIndexingQueue,name="
+                + ObjectName.quote(id));
+    }
+
+    private static int getInt(NodeBuilder definition, String name, int defaultValue) {
+        PropertyState property = definition.getProperty(name);
+        return property != null ? property.getValue(Type.LONG).intValue() : defaultValue;
+    }
 }
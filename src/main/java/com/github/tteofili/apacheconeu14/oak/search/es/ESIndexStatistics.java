@@ -0,0 +1,182 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.tteofili.apacheconeu14.oak.search.es;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.action.count.CountResponse;
+import org.elasticsearch.client.Client;
+import org.elasticsearch.cluster.metadata.MappingMetaData;
+import org.elasticsearch.index.query.QueryBuilder;
+import org.elasticsearch.index.query.QueryBuilders;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import static com.github.tteofili.apacheconeu14.oak.search.es.ESUtils.INDEX_NAME;
+import static com.github.tteofili.apacheconeu14.oak.search.es.ESUtils.TYPE_NAME;
+
+/**
+ * Cached statistics (and field types) of the Elasticsearch index used for planning queries.
+ * Estimates never wait for Elasticsearch: a missing count is requested in the background and, until it
+ * arrives, the total number of docs is used. The cache is dropped at most every {@link #REFRESH_INTERVAL}
+ * seconds after the index has changed.
+ */
+public class ESIndexStatistics {
+
+    public static final long REFRESH_INTERVAL = 10;
+
+    /**
+     * estimate used while not even the total number of docs is known
+     */
+    public static final long DEFAULT_ESTIMATE = 1000;
+
+    private static final int MAX_CACHED_COUNTS = 1000;
+
+    private final Logger log = LoggerFactory.getLogger(getClass());
+
+    private final Client client;
+    private final ScheduledExecutorService executor;
+    private final Cache<String, Long> counts = CacheBuilder.newBuilder().maximumSize(MAX_CACHED_COUNTS).build();
+    private final ConcurrentMap<String, Boolean> pendingCounts = new ConcurrentHashMap<String, Boolean>();
+
+    private volatile long docCount = -1;
+    private volatile Map<String, String> fieldTypes = Collections.emptyMap();
+    private volatile boolean changed = true;
+
+    public ESIndexStatistics(Client client) {
+        this.client = client;
+        this.executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "es-index-statistics");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        executor.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                if (changed) {
+                    changed = false;
+                    counts.invalidateAll();
+                    refreshDocCount();
+                    refreshFieldTypes();
+                }
+            }
+        }, 0, REFRESH_INTERVAL, TimeUnit.SECONDS);
+    }
+
+    /**
+     * marks the statistics as stale, to be called whenever the index changes
+     */
+    public void invalidate() {
+        changed = true;
+    }
+
+    /**
+     * @return the total number of docs in the index, or -1 if not yet known
+     */
+    public long getDocCount() {
+        return docCount;
+    }
+
+    /**
+     * @return the Elasticsearch type of each mapped field, empty if the mapping has not been fetched yet
+     */
+    public Map<String, String> getFieldTypes() {
+        return fieldTypes;
+    }
+
+    /**
+     * @return the (possibly stale) number of docs matching the given query
+     */
+    public long estimateCount(QueryBuilder query) {
+        String key = query.toString();
+        Long count = counts.getIfPresent(key);
+        if (count != null) {
+            return count;
+        }
+        requestCount(key, query);
+        return docCount >= 0 ? docCount : DEFAULT_ESTIMATE;
+    }
+
+    public void close() {
+        executor.shutdown();
+    }
+
+    private void refreshDocCount() {
+        try {
+            docCount = client.prepareCount(INDEX_NAME).setTypes(TYPE_NAME).setQuery(QueryBuilders.matchAllQuery())
+                    .execute().actionGet().getCount();
+        } catch (Exception e) {
+            log.debug("could not count docs", e);
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private void refreshFieldTypes() {
+        try {
+            MappingMetaData mapping = client.admin().indices().prepareGetMappings(INDEX_NAME).setTypes(TYPE_NAME)
+                    .execute().actionGet().getMappings().get(INDEX_NAME).get(TYPE_NAME);
+            if (mapping != null) {
+                Map<String, String> types = new HashMap<String, String>();
+                Map<String, Object> properties = (Map<String, Object>) mapping.sourceAsMap().get("properties");
+                if (properties != null) {
+                    for (Map.Entry<String, Object> property : properties.entrySet()) {
+                        Object type = ((Map<String, Object>) property.getValue()).get("type");
+                        if (type != null) {
+                            types.put(property.getKey(), String.valueOf(type));
+                        }
+                    }
+                }
+                fieldTypes = types;
+            }
+        } catch (Exception e) {
+            log.debug("could not fetch the mapping", e);
+        }
+    }
+
+    private void requestCount(final String key, QueryBuilder query) {
+        if (pendingCounts.putIfAbsent(key, Boolean.TRUE) != null) {
+            return;
+        }
+        client.prepareCount(INDEX_NAME).setTypes(TYPE_NAME).setQuery(query).execute(new ActionListener<CountResponse>() {
+            @Override
+            public void onResponse(CountResponse countResponse) {
+                counts.put(key, countResponse.getCount());
+                pendingCounts.remove(key);
+            }
+
+            @Override
+            public void onFailure(Throwable e) {
+                log.debug("could not count docs matching {}", key, e);
+                pendingCounts.remove(key);
+            }
+        });
+    }
+}
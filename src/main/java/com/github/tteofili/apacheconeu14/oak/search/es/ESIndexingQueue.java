@@ -0,0 +1,361 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.tteofili.apacheconeu14.oak.search.es;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.github.tteofili.apacheconeu14.oak.search.util.IndexingRules;
+import org.apache.jackrabbit.oak.spi.state.NodeState;
+import org.elasticsearch.client.Client;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Bounded in memory queue of changed nodes which are sent to Elasticsearch by a pool of background workers,
+ * so that commits don't have to wait for Elasticsearch.
+ * Repeated updates of the same path are merged into one, only the latest {@link NodeState} gets indexed, and
+ * deletes go through the queue as well so that they're ordered with the updates of the same path.
+ * Updates which can't be indexed, because the queue is full or Elasticsearch failed them, are counted as
+ * dropped and mark the index as needing a reindex.
+ */
+public class ESIndexingQueue implements ESIndexingQueueMBean {
+
+    /**
+     * what to do when an update is offered to a full queue
+     */
+    public enum Backpressure {
+        /**
+         * wait until the workers make room in the queue
+         */
+        BLOCK,
+        /**
+         * drop the update and mark the index as needing a reindex
+         */
+        DROP,
+        /**
+         * reject the update so that the caller indexes it itself
+         */
+        SPILL
+    }
+
+    public static final int BATCH_SIZE = 500;
+
+    private final Logger log = LoggerFactory.getLogger(getClass());
+
+    private final Client client;
+    private final int capacity;
+    private final int workerCount;
+    private final Backpressure backpressure;
+    private final ExecutorService workers;
+
+    private final Object lock = new Object();
+    private final LinkedHashMap<String, Update> pending = new LinkedHashMap<String, Update>();
+    private final Map<String, Update> inFlight = new HashMap<String, Update>();
+
+    private int deletesInFlight;
+    private boolean reindexRequired;
+    private long dropped;
+    private volatile boolean closed;
+
+    public ESIndexingQueue(Client client, int capacity, int workerCount, Backpressure backpressure) {
+        this.client = client;
+        this.capacity = capacity;
+        this.workerCount = workerCount;
+        this.backpressure = backpressure;
+        this.workers = Executors.newFixedThreadPool(workerCount, new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "es-indexing-" + count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        for (int i = 0; i < workerCount; i++) {
+            workers.execute(new Worker());
+        }
+    }
+
+    /**
+     * enqueues the given node state, a non existing state stands for a deleted subtree
+     *
+     * @return {@code false} if the queue was full and the update has not been accepted
+     */
+    public boolean offer(String path, NodeState state) {
+        return offer(path, state, IndexingRules.ALL);
+    }
+
+    /**
+     * enqueues the given node state, to be indexed according to the given rules
+     *
+     * @return {@code false} if the queue was full and the update has not been accepted
+     */
+    public boolean offer(String path, NodeState state, IndexingRules rules) {
+        return enqueue(path, state, rules);
+    }
+
+    /**
+     * enqueues the deletion of the doc of the given path only, its descendants are left untouched
+     *
+     * @return {@code false} if the queue was full and the delete has not been accepted
+     */
+    public boolean offerDelete(String path) {
+        return enqueue(path, null, IndexingRules.ALL);
+    }
+
+    /**
+     * @param state the state to index, {@code null} for deleting the doc of the path
+     */
+    private boolean enqueue(String path, NodeState state, IndexingRules rules) {
+        synchronized (lock) {
+            Update update = pending.get(path);
+            while (update == null && pending.size() >= capacity) {
+                if (backpressure != Backpressure.BLOCK) {
+                    dropped++;
+                    if (backpressure == Backpressure.DROP) {
+                        reindexRequired = true;
+                    }
+                    return false;
+                }
+                try {
+                    lock.wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    dropped++;
+                    reindexRequired = true;
+                    return false;
+                }
+                update = pending.get(path);
+            }
+            boolean subtreeDeleted = state != null && !state.exists();
+            if (update != null) {
+                update.state = state;
+                update.rules = rules;
+                if (subtreeDeleted || !update.subtreeDeleted) {
+                    // moved behind the updates queued meanwhile, so that a subtree delete queued after the
+                    // previous update of the path can't wipe the latest one, and a subtree delete follows the
+                    // updates of the descendants queued before it; a pending subtree delete stays where it is,
+                    // as the descendants queued after it have to be indexed after it
+                    pending.remove(path);
+                    pending.put(path, update);
+                }
+            } else {
+                update = new Update(state, rules);
+                pending.put(path, update);
+                lock.notifyAll();
+            }
+            if (subtreeDeleted) {
+                // sticks even if the node is added back, its old descendants still have to go
+                update.subtreeDeleted = true;
+            }
+            return true;
+        }
+    }
+
+    public Backpressure getBackpressure() {
+        return backpressure;
+    }
+
+    /**
+     * @return {@code true} if updates have been dropped since the last call, meaning the index has to be rebuilt
+     */
+    public boolean consumeReindexRequired() {
+        synchronized (lock) {
+            boolean required = reindexRequired;
+            reindexRequired = false;
+            return required;
+        }
+    }
+
+    /**
+     * @return the capacity of the queue
+     */
+    public int getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * @return the number of workers sending the updates
+     */
+    public int getWorkerCount() {
+        return workerCount;
+    }
+
+    @Override
+    public int getSize() {
+        synchronized (lock) {
+            return pending.size() + inFlight.size();
+        }
+    }
+
+    @Override
+    public long getDroppedCount() {
+        synchronized (lock) {
+            return dropped;
+        }
+    }
+
+    @Override
+    public long getLag() {
+        synchronized (lock) {
+            long oldest = Long.MAX_VALUE;
+            // merged updates are moved to the tail, so the queue isn't ordered by age
+            for (Update update : pending.values()) {
+                oldest = Math.min(oldest, update.enqueued);
+            }
+            for (Update update : inFlight.values()) {
+                oldest = Math.min(oldest, update.enqueued);
+            }
+            return oldest == Long.MAX_VALUE ? 0 : System.currentTimeMillis() - oldest;
+        }
+    }
+
+    public void close() {
+        closed = true;
+        synchronized (lock) {
+            lock.notifyAll();
+        }
+        workers.shutdown();
+    }
+
+    /**
+     * @return the indexer of a worker
+     */
+    protected ESBulkIndexer createIndexer() {
+        return new ESBulkIndexer(client);
+    }
+
+    private Map<String, Update> take() throws InterruptedException {
+        synchronized (lock) {
+            while (!closed) {
+                Map<String, Update> batch = new LinkedHashMap<String, Update>();
+                // a subtree delete is a barrier: it's sent when nothing else is in flight, and nothing else
+                // is sent by other workers until it's done, so that it's ordered with the updates of its subtree
+                Iterator<Map.Entry<String, Update>> iterator = pending.entrySet().iterator();
+                while (deletesInFlight == 0 && iterator.hasNext() && batch.size() < BATCH_SIZE) {
+                    Map.Entry<String, Update> entry = iterator.next();
+                    if (entry.getValue().subtreeDeleted && inFlight.size() > batch.size()) {
+                        break;
+                    }
+                    // updates of a path which is still being sent wait for the next round, to preserve ordering
+                    if (!inFlight.containsKey(entry.getKey())) {
+                        batch.put(entry.getKey(), entry.getValue());
+                        inFlight.put(entry.getKey(), entry.getValue());
+                        iterator.remove();
+                    }
+                }
+                if (!batch.isEmpty()) {
+                    if (hasSubtreeDeletes(batch)) {
+                        deletesInFlight++;
+                    }
+                    lock.notifyAll();
+                    return batch;
+                }
+                lock.wait();
+            }
+            return null;
+        }
+    }
+
+    /**
+     * @param failures the number of updates of the batch which couldn't be indexed
+     */
+    private void done(Map<String, Update> batch, int failures) {
+        synchronized (lock) {
+            if (failures > 0) {
+                dropped += failures;
+                reindexRequired = true;
+            }
+            inFlight.keySet().removeAll(batch.keySet());
+            if (hasSubtreeDeletes(batch)) {
+                deletesInFlight--;
+            }
+            lock.notifyAll();
+        }
+    }
+
+    private static boolean hasSubtreeDeletes(Map<String, Update> batch) {
+        for (Update update : batch.values()) {
+            if (update.subtreeDeleted) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static class Update {
+        private final long enqueued = System.currentTimeMillis();
+        /**
+         * {@code null} if the doc has to be deleted
+         */
+        private NodeState state;
+        private IndexingRules rules;
+        private boolean subtreeDeleted;
+
+        private Update(NodeState state, IndexingRules rules) {
+            this.state = state;
+            this.rules = rules;
+        }
+    }
+
+    private class Worker implements Runnable {
+        @Override
+        public void run() {
+            ESBulkIndexer indexer = createIndexer();
+            while (!closed) {
+                Map<String, Update> batch;
+                try {
+                    batch = take();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                if (batch == null) {
+                    return;
+                }
+                int failures = 0;
+                try {
+                    for (Map.Entry<String, Update> entry : batch.entrySet()) {
+                        NodeState state = entry.getValue().state;
+                        if (entry.getValue().subtreeDeleted) {
+                            indexer.deleteSubtree(entry.getKey());
+                        }
+                        if (state == null) {
+                            indexer.delete(entry.getKey());
+                        } else if (state.exists()) {
+                            indexer.index(entry.getKey(), state, entry.getValue().rules);
+                        }
+                    }
+                    indexer.flush();
+                    failures = indexer.consumeFailures();
+                } catch (Exception e) {
+                    failures = batch.size();
+                    log.error("failed indexing {} queued updates", batch.size(), e);
+                } finally {
+                    done(batch, failures);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,38 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.tteofili.apacheconeu14.oak.search.es;
+
+/**
+ * JMX view of an {@link ESIndexingQueue}
+ */
+public interface ESIndexingQueueMBean {
+
+    /**
+     * @return the number of updates waiting to be sent
+     */
+    int getSize();
+
+    /**
+     * @return the age in milliseconds of the oldest update not yet indexed, 0 if there's none
+     */
+    long getLag();
+
+    /**
+     * @return the number of updates rejected because the queue was full, or which failed to be indexed
+     */
+    long getDroppedCount();
+}
@@ -16,38 +16,103 @@
  */
 package com.github.tteofili.apacheconeu14.oak.search.es;
 
+import javax.jcr.PropertyType;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import com.github.tteofili.apacheconeu14.oak.search.util.IndexingRules;
+import org.apache.jackrabbit.oak.api.PropertyState;
 import org.apache.jackrabbit.oak.api.PropertyValue;
+import org.apache.jackrabbit.oak.api.Type;
 import org.apache.jackrabbit.oak.spi.query.Cursor;
 import org.apache.jackrabbit.oak.spi.query.Filter;
-import org.apache.jackrabbit.oak.spi.query.IndexRow;
-import org.apache.jackrabbit.oak.spi.query.PropertyValues;
 import org.apache.jackrabbit.oak.spi.query.QueryIndex;
 import org.apache.jackrabbit.oak.spi.state.NodeState;
-import org.elasticsearch.action.search.SearchResponse;
+import org.elasticsearch.action.search.SearchRequestBuilder;
 import org.elasticsearch.action.search.SearchType;
 import org.elasticsearch.client.Client;
+import org.elasticsearch.index.query.FilterBuilder;
+import org.elasticsearch.index.query.FilterBuilders;
+import org.elasticsearch.index.query.QueryBuilder;
 import org.elasticsearch.index.query.QueryBuilders;
-import org.elasticsearch.search.SearchHit;
-import org.elasticsearch.search.SearchHits;
+import org.elasticsearch.index.query.RangeFilterBuilder;
+import org.elasticsearch.search.sort.SortBuilder;
+import org.elasticsearch.search.sort.SortBuilders;
+import org.elasticsearch.search.sort.SortOrder;
+
+import static com.github.tteofili.apacheconeu14.oak.search.es.ESUtils.ANCESTORS;
+import static com.github.tteofili.apacheconeu14.oak.search.es.ESUtils.DEPTH;
+import static com.github.tteofili.apacheconeu14.oak.search.es.ESUtils.INDEX_NAME;
+import static com.github.tteofili.apacheconeu14.oak.search.es.ESUtils.PATH;
+import static com.github.tteofili.apacheconeu14.oak.search.es.ESUtils.RAW;
+import static com.github.tteofili.apacheconeu14.oak.search.es.ESUtils.TRUNCATED;
+import static com.github.tteofili.apacheconeu14.oak.search.es.ESUtils.TYPE_NAME;
+import static org.apache.jackrabbit.oak.commons.PathUtils.denotesRoot;
+import static org.apache.jackrabbit.oak.commons.PathUtils.getDepth;
+import static org.apache.jackrabbit.oak.commons.PathUtils.getParentPath;
+import static org.apache.jackrabbit.oak.plugins.index.IndexConstants.ASYNC_PROPERTY_NAME;
+import static org.apache.jackrabbit.oak.plugins.memory.EmptyNodeState.EMPTY_NODE;
 
 /**
- * Sample query index for Elasticsearch
+ * Sample query index for Elasticsearch.
+ * Native queries ({@code es} restrictions) are always handled. Other property queries are only handled by
+ * synchronous definitions opting in with {@code propertyQueries = true}, since async indexing may lag behind or
+ * drop updates and Oak would silently return fewer rows than a traversal, and only when the {@link IndexingRules}
+ * of the definition index all the paths, types and properties the query can match.
+ * Path restrictions are applied as (cached) filters on the path, ancestors and depth fields, property
+ * restrictions (equality, in, ranges, like prefixes and not null) as filters on the fields of the mapping,
+ * and orderings on non string fields as sorts on them.
+ * Costs are estimated from the cached {@link com.github.tteofili.apacheconeu14.oak.search.es.ESIndexStatistics}.
+ * Results are streamed in pages of {@code pageSize} hits, explanations ({@code explain}) and distributed
+ * term frequencies ({@code dfs}) are only computed when enabled in the index definition.
  */
-public class ESQueryIndex implements QueryIndex {
+public class ESQueryIndex implements QueryIndex, QueryIndex.AdvancedQueryIndex {
 
     private static final String NATIVE_ES_QUERY = "es";
 
+    /**
+     * name of the definition property enabling the handling of plain property restrictions
+     */
+    public static final String PROPERTY_QUERIES = "propertyQueries";
+
+    private static final int DEFAULT_PAGE_SIZE = 100;
+
+    /**
+     * the cost of a round trip to Elasticsearch
+     */
+    private static final double COST_PER_EXECUTION = 10;
+
+    private static final double COST_PER_ENTRY = 1;
+
     private final Client client;
+    private final int pageSize;
+    private final boolean explain;
+    private final boolean dfs;
+    private final boolean async;
+    private final boolean propertyQueries;
+    private final IndexingRules rules;
 
     public ESQueryIndex(Client client) {
+        this(client, EMPTY_NODE);
+    }
+
+    public ESQueryIndex(Client client, NodeState definition) {
         this.client = client;
+        PropertyState pageSizeProperty = definition.getProperty("pageSize");
+        this.pageSize = pageSizeProperty != null ? pageSizeProperty.getValue(Type.LONG).intValue() : DEFAULT_PAGE_SIZE;
+        this.explain = definition.getBoolean("explain");
+        this.dfs = definition.getBoolean("dfs");
+        this.async = definition.hasProperty(ASYNC_PROPERTY_NAME);
+        this.propertyQueries = definition.getBoolean(PROPERTY_QUERIES) && !async;
+        this.rules = IndexingRules.from(definition);
     }
 
     @Override
     public double getCost(Filter filter, NodeState nodeState) {
-        // only allow native query language
-        if (filter.getPropertyRestriction(NATIVE_ES_QUERY) != null) {
-            return 1;
+        if (canHandle(filter)) {
+            return COST_PER_EXECUTION + COST_PER_ENTRY * ESUtils.getStatistics().estimateCount(buildQuery(filter));
         } else {
             return Double.POSITIVE_INFINITY;
         }
@@ -55,54 +120,260 @@ public class ESQueryIndex implements QueryIndex {
 
     @Override
     public Cursor query(Filter filter, NodeState nodeState) {
+        return search(filter, null);
+    }
+
+    @Override
+    public List<IndexPlan> getPlans(Filter filter, List<OrderEntry> sortOrder, NodeState rootState) {
+        if (!canHandle(filter)) {
+            return Collections.emptyList();
+        }
+        IndexPlan.Builder plan = new IndexPlan.Builder()
+                .setCostPerExecution(COST_PER_EXECUTION)
+                .setCostPerEntry(COST_PER_ENTRY)
+                .setEstimatedEntryCount(ESUtils.getStatistics().estimateCount(buildQuery(filter)))
+                .setFilter(filter)
+                .setDelayed(async)
+                .setFulltextIndex(false)
+                .setIncludesNodeData(false);
+        // tell the planner results come sorted, only when the whole ordering can be pushed down
+        if (sortOrder != null && !sortOrder.isEmpty() && buildSort(sortOrder) != null) {
+            plan.setSortOrder(sortOrder);
+        }
+        return Collections.singletonList(plan.build());
+    }
+
+    @Override
+    public String getPlanDescription(IndexPlan plan, NodeState root) {
+        return "es " + buildQuery(plan.getFilter()) + (plan.getSortOrder() != null ? " sort " + plan.getSortOrder() : "");
+    }
+
+    @Override
+    public Cursor query(IndexPlan plan, NodeState rootState) {
+        return search(plan.getFilter(), plan.getSortOrder());
+    }
+
+    private Cursor search(Filter filter, List<OrderEntry> sortOrder) {
+        SearchRequestBuilder request = client.prepareSearch(INDEX_NAME)
+                .setTypes(TYPE_NAME)
+                .setSearchType(dfs ? SearchType.DFS_QUERY_THEN_FETCH : SearchType.QUERY_THEN_FETCH)
+                .setQuery(buildQuery(filter))
+                .setSize(pageSize)
+                .setExplain(explain);
+        List<SortBuilder> sorts = sortOrder != null ? buildSort(sortOrder) : null;
+        if (sorts != null) {
+            for (SortBuilder sort : sorts) {
+                request.addSort(sort);
+            }
+        }
+        return new ESScrollCursor(client, request);
+    }
+
+    /**
+     * queries with the native restriction are always handled, others only if property queries are enabled, the
+     * indexed paths and types cover the ones of the query, all their restricted properties are indexed and at
+     * least one of their restrictions can be turned into a filter
+     */
+    private boolean canHandle(Filter filter) {
+        if (filter.getPropertyRestriction(NATIVE_ES_QUERY) != null) {
+            return true;
+        }
+        if (!propertyQueries || filter.isAlwaysFalse() || filter.getFullTextConstraint() != null
+                || !rules.covers(filter)) {
+            return false;
+        }
+        Map<String, String> fieldTypes = ESUtils.getStatistics().getFieldTypes();
+        boolean filtered = false;
+        for (Filter.PropertyRestriction restriction : filter.getPropertyRestrictions()) {
+            if (!restriction.propertyName.contains("/") && !rules.isIndexed(restriction.propertyName)) {
+                // not in the docs, no row would be found
+                return false;
+            }
+            filtered |= buildPropertyFilter(restriction, fieldTypes) != null;
+        }
+        return filtered;
+    }
+
+    private QueryBuilder buildQuery(Filter filter) {
         Filter.PropertyRestriction nativeQueryRestriction = filter.getPropertyRestriction(NATIVE_ES_QUERY);
-        String nativeQueryString = String.valueOf(nativeQueryRestriction.first.getValue(nativeQueryRestriction.first.getType()));
-        SearchResponse response = client.prepareSearch("oak")
-                .setTypes("node")
-                .setSearchType(SearchType.DFS_QUERY_THEN_FETCH)
-                .setQuery(QueryBuilders.queryString(nativeQueryString))
-                .setFrom(0).setSize(60).setExplain(true)
-                .execute()
-                .actionGet();
-
-        final SearchHits searchHits = response.getHits();
-        return new Cursor() {
-
-            private int index = 0;
-
-            @Override
-            public IndexRow next() {
-                final SearchHit searchHit = searchHits.getAt(index);
-                index++;
-
-                return new IndexRow() {
-                    @Override
-                    public String getPath() {
-                        return String.valueOf(searchHit.getSource().get("path"));
-                    }
-
-                    @Override
-                    public PropertyValue getValue(String s) {
-                        return PropertyValues.newString(String.valueOf(searchHit.getSource().get(s)));
-                    }
-                };
+        QueryBuilder query;
+        if (nativeQueryRestriction != null) {
+            String nativeQueryString = String.valueOf(nativeQueryRestriction.first.getValue(nativeQueryRestriction.first.getType()));
+            query = QueryBuilders.queryString(nativeQueryString);
+        } else {
+            query = QueryBuilders.matchAllQuery();
+        }
+
+        List<FilterBuilder> filters = new ArrayList<FilterBuilder>();
+        FilterBuilder pathFilter = buildPathFilter(filter);
+        if (pathFilter != null) {
+            filters.add(pathFilter);
+        }
+        Map<String, String> fieldTypes = ESUtils.getStatistics().getFieldTypes();
+        for (Filter.PropertyRestriction restriction : filter.getPropertyRestrictions()) {
+            FilterBuilder propertyFilter = buildPropertyFilter(restriction, fieldTypes);
+            if (propertyFilter != null) {
+                filters.add(propertyFilter);
+            }
+        }
+
+        if (filters.isEmpty()) {
+            return query;
+        } else if (filters.size() == 1) {
+            return QueryBuilders.filteredQuery(query, filters.get(0));
+        } else {
+            return QueryBuilders.filteredQuery(query, FilterBuilders.boolFilter().must(filters.toArray(new FilterBuilder[filters.size()])));
+        }
+    }
+
+    private static FilterBuilder buildPathFilter(Filter filter) {
+        String path = filter.getPath();
+        switch (filter.getPathRestriction()) {
+            case EXACT:
+                return FilterBuilders.termFilter(PATH, path).cache(true);
+            case PARENT:
+                return denotesRoot(path) ? null : FilterBuilders.termFilter(PATH, getParentPath(path)).cache(true);
+            case DIRECT_CHILDREN:
+                return FilterBuilders.boolFilter()
+                        .must(FilterBuilders.termFilter(ANCESTORS, path).cache(true))
+                        .must(FilterBuilders.termFilter(DEPTH, getDepth(path) + 1).cache(true));
+            case ALL_CHILDREN:
+                return denotesRoot(path) ? null : FilterBuilders.termFilter(ANCESTORS, path).cache(true);
+            default:
+                return null;
+        }
+    }
+
+    /**
+     * @return a filter matching (at least) the docs satisfying the restriction, or {@code null} if it can't be
+     * translated, in which case it's only evaluated by Oak
+     */
+    private FilterBuilder buildPropertyFilter(Filter.PropertyRestriction restriction, Map<String, String> fieldTypes) {
+        String name = restriction.propertyName;
+        String fieldType = fieldTypes.get(name);
+        if (fieldType == null || NATIVE_ES_QUERY.equals(name) || name.contains("/") || !rules.isIndexed(name)) {
+            return null;
+        }
+        boolean string = "string".equals(fieldType);
+        String field = string ? name + RAW : name;
+
+        if (restriction.list != null) {
+            List<Object> values = new ArrayList<Object>();
+            for (PropertyValue value : restriction.list) {
+                Object converted = convert(value, fieldType);
+                if (converted == null || isTruncated(converted)) {
+                    return null;
+                }
+                values.add(converted);
             }
+            return FilterBuilders.termsFilter(field, values.toArray());
+        }
+
+        if (restriction.isLike) {
+            // only prefix patterns such as 'abc%' can be translated
+            String pattern = restriction.first != null ? restriction.first.getValue(Type.STRING) : null;
+            if (pattern == null || !"string".equals(fieldType) || !pattern.endsWith("%")) {
+                return null;
+            }
+            String prefix = pattern.substring(0, pattern.length() - 1);
+            if (prefix.contains("%") || prefix.contains("_") || prefix.contains("\\")) {
+                return null;
+            }
+            return includeTruncated(FilterBuilders.prefixFilter(field, prefix), name);
+        }
 
-            @Override
-            public boolean hasNext() {
-                return index < searchHits.hits().length;
+        if (restriction.first == null && restriction.last == null) {
+            return FilterBuilders.existsFilter(name);
+        }
+
+        Object first = restriction.first != null ? convert(restriction.first, fieldType) : null;
+        Object last = restriction.last != null ? convert(restriction.last, fieldType) : null;
+        if ((restriction.first != null && first == null) || (restriction.last != null && last == null)) {
+            return null;
+        }
+        if (restriction.first != null && restriction.first.equals(restriction.last)
+                && restriction.firstIncluding && restriction.lastIncluding) {
+            // a value longer than the untokenized copy can't be matched on it
+            return isTruncated(first) ? null : FilterBuilders.termFilter(field, first);
+        }
+        RangeFilterBuilder range = FilterBuilders.rangeFilter(field);
+        if (first != null) {
+            range.from(first).includeLower(restriction.firstIncluding);
+        }
+        if (last != null) {
+            range.to(last).includeUpper(restriction.lastIncluding);
+        }
+        return string ? includeTruncated(range, name) : range;
+    }
+
+    private static boolean isTruncated(Object value) {
+        return value instanceof String && ((String) value).length() > ESUtils.IGNORE_ABOVE;
+    }
+
+    /**
+     * @return a filter also matching the docs whose values of the property are too long for the untokenized copy,
+     * which Oak then checks against the restriction
+     */
+    private static FilterBuilder includeTruncated(FilterBuilder filter, String name) {
+        return FilterBuilders.orFilter(filter, FilterBuilders.termFilter(TRUNCATED, name).cache(true));
+    }
+
+    /**
+     * @return the value converted to the type of the field, {@code null} if not convertible
+     */
+    private static Object convert(PropertyValue value, String fieldType) {
+        try {
+            if ("string".equals(fieldType)) {
+                return value.getValue(Type.STRING);
+            } else if ("long".equals(fieldType) || "integer".equals(fieldType)
+                    || "short".equals(fieldType) || "byte".equals(fieldType)) {
+                return value.getValue(Type.LONG);
+            } else if ("double".equals(fieldType) || "float".equals(fieldType)) {
+                return value.getValue(Type.DOUBLE);
+            } else if ("boolean".equals(fieldType)) {
+                return value.getValue(Type.BOOLEAN);
+            } else if ("date".equals(fieldType)) {
+                return value.getValue(Type.DATE);
             }
+        } catch (Exception e) {
+            // not convertible, e.g. a string literal compared with a numeric property
+        }
+        return null;
+    }
 
-            @Override
-            public void remove() {
-                // do nothing
+    /**
+     * @return the sorts for the given ordering, {@code null} if any of its entries can't be sorted on
+     */
+    private List<SortBuilder> buildSort(List<OrderEntry> sortOrder) {
+        Map<String, String> fieldTypes = ESUtils.getStatistics().getFieldTypes();
+        if (fieldTypes.isEmpty()) {
+            return null;
+        }
+        List<SortBuilder> sorts = new ArrayList<SortBuilder>();
+        for (OrderEntry entry : sortOrder) {
+            SortOrder order = entry.getOrder() == OrderEntry.Order.DESCENDING ? SortOrder.DESC : SortOrder.ASC;
+            String name = entry.getPropertyName();
+            if ("jcr:score".equals(name)) {
+                sorts.add(SortBuilders.scoreSort().order(order));
+            } else if ("jcr:path".equals(name)) {
+                sorts.add(SortBuilders.fieldSort(PATH).order(order));
+            } else if (name.contains("/") || !rules.isIndexed(name) || (entry.getPropertyType() != null && entry.getPropertyType().tag() == PropertyType.BINARY)) {
+                return null;
+            } else if (fieldTypes.get(name) == null || "string".equals(fieldTypes.get(name))) {
+                // values longer than the untokenized copy would be sorted as missing, leave strings to Oak
+                return null;
+            } else {
+                // Oak puts nulls first when ascending
+                sorts.add(SortBuilders.fieldSort(name).order(order).ignoreUnmapped(true)
+                        .missing(order == SortOrder.ASC ? "_first" : "_last"));
             }
-        };
+        }
+        return sorts;
     }
 
     @Override
     public String getPlan(Filter filter, NodeState nodeState) {
-        return null;
+        return "es " + buildQuery(filter);
     }
 
     @Override
@@ -17,52 +17,43 @@
 package com.github.tteofili.apacheconeu14.oak.search.es;
 
 import javax.annotation.Nonnull;
-import java.util.ArrayList;
 import java.util.List;
 
+import com.github.tteofili.apacheconeu14.oak.search.util.QueryIndexRegistry;
 import org.apache.felix.scr.annotations.Component;
 import org.apache.felix.scr.annotations.Service;
-import org.apache.jackrabbit.oak.api.PropertyState;
-import org.apache.jackrabbit.oak.api.Type;
 import org.apache.jackrabbit.oak.spi.query.QueryIndex;
 import org.apache.jackrabbit.oak.spi.query.QueryIndexProvider;
-import org.apache.jackrabbit.oak.spi.state.ChildNodeEntry;
 import org.apache.jackrabbit.oak.spi.state.NodeState;
 import org.elasticsearch.client.Client;
 
-import static org.apache.jackrabbit.oak.plugins.index.IndexConstants.INDEX_DEFINITIONS_NAME;
-import static org.apache.jackrabbit.oak.plugins.index.IndexConstants.TYPE_PROPERTY_NAME;
-
 /**
  * provider for {@link com.github.tteofili.apacheconeu14.oak.search.es.ESQueryIndex}
  */
 @Component(immediate = true)
 @Service(value = QueryIndexProvider.class)
 public class ESQueryIndexProvider implements QueryIndexProvider {
+
+    /**
+     * the ES query indexes, rebuilt only when their definition changes
+     */
+    private final QueryIndexRegistry registry = new QueryIndexRegistry("es") {
+        @Override
+        protected QueryIndex createIndex(String path, NodeState definition) throws Exception {
+            Thread thread = Thread.currentThread();
+            ClassLoader loader = thread.getContextClassLoader();
+            thread.setContextClassLoader(Client.class.getClassLoader());
+            try {
+                return new ESQueryIndex(ESUtils.getClient(), definition);
+            } finally {
+                thread.setContextClassLoader(loader);
+            }
+        }
+    };
+
     @Nonnull
     @Override
     public List<? extends QueryIndex> getQueryIndexes(NodeState nodeState) {
-        List<QueryIndex> tempIndexes = new ArrayList<QueryIndex>();
-        NodeState definitions = nodeState.getChildNode(INDEX_DEFINITIONS_NAME);
-        for (ChildNodeEntry entry : definitions.getChildNodeEntries()) {
-            NodeState definition = entry.getNodeState();
-            PropertyState type = definition.getProperty(TYPE_PROPERTY_NAME);
-            if (type != null
-                    && "es".equals(type.getValue(Type.STRING))) {
-                try {
-                    Thread thread = Thread.currentThread();
-                    ClassLoader loader = thread.getContextClassLoader();
-                    thread.setContextClassLoader(Client.class.getClassLoader());
-                    try {
-                        tempIndexes.add(new ESQueryIndex(ESUtils.getClient()));
-                    } finally {
-                        thread.setContextClassLoader(loader);
-                    }
-                } catch (Exception e) {
-                    // do nothing
-                }
-            }
-        }
-        return tempIndexes;
+        return registry.getQueryIndexes(nodeState);
     }
 }
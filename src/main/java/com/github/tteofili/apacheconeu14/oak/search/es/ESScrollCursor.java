@@ -0,0 +1,130 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.tteofili.apacheconeu14.oak.search.es;
+
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+import org.apache.jackrabbit.oak.api.PropertyValue;
+import org.apache.jackrabbit.oak.spi.query.Cursor;
+import org.apache.jackrabbit.oak.spi.query.IndexRow;
+import org.apache.jackrabbit.oak.spi.query.PropertyValues;
+import org.elasticsearch.action.ListenableActionFuture;
+import org.elasticsearch.action.search.SearchRequestBuilder;
+import org.elasticsearch.action.search.SearchResponse;
+import org.elasticsearch.client.Client;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.search.SearchHit;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * {@link Cursor} over the results of an Elasticsearch search, fetched page by page through a scroll.
+ * While the caller works through a page the next one is already being fetched; the scroll is cleared
+ * once the results are exhausted, abandoned cursors have their search context expire after {@link #KEEP_ALIVE}.
+ */
+public class ESScrollCursor implements Cursor {
+
+    public static final TimeValue KEEP_ALIVE = TimeValue.timeValueMinutes(1);
+
+    private final Logger log = LoggerFactory.getLogger(getClass());
+
+    private final Client client;
+
+    private SearchHit[] hits;
+    private int index;
+    private long fetched;
+    private String scrollId;
+    private ListenableActionFuture<SearchResponse> nextPage;
+
+    public ESScrollCursor(Client client, SearchRequestBuilder request) {
+        this.client = client;
+        load(request.setScroll(KEEP_ALIVE).execute().actionGet());
+    }
+
+    private void load(SearchResponse response) {
+        hits = response.getHits().getHits();
+        index = 0;
+        fetched += hits.length;
+        scrollId = response.getScrollId();
+        if (hits.length > 0 && fetched < response.getHits().getTotalHits()) {
+            // prefetch the next page while this one is consumed
+            nextPage = client.prepareSearchScroll(scrollId).setScroll(KEEP_ALIVE).execute();
+        } else {
+            nextPage = null;
+            release();
+        }
+    }
+
+    private void release() {
+        if (scrollId != null) {
+            client.prepareClearScroll().addScrollId(scrollId).execute();
+            scrollId = null;
+        }
+    }
+
+    @Override
+    public boolean hasNext() {
+        if (index < hits.length) {
+            return true;
+        }
+        if (nextPage == null) {
+            return false;
+        }
+        try {
+            load(nextPage.actionGet());
+        } catch (Exception e) {
+            log.error("could not fetch the next page of results", e);
+            hits = new SearchHit[0];
+            nextPage = null;
+            release();
+        }
+        return index < hits.length;
+    }
+
+    @Override
+    public IndexRow next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        final SearchHit searchHit = hits[index];
+        index++;
+
+        return new IndexRow() {
+            @Override
+            public String getPath() {
+                return searchHit.getId();
+            }
+
+            @Override
+            public PropertyValue getValue(String s) {
+                if ("jcr:score".equals(s)) {
+                    return PropertyValues.newDouble((double) searchHit.getScore());
+                }
+                Map<String, Object> source = searchHit.getSource();
+                Object value = source != null ? source.get(s) : null;
+                // no value rather than the "null" string for missing fields
+                return value != null ? PropertyValues.newString(String.valueOf(value)) : null;
+            }
+        };
+    }
+
+    @Override
+    public void remove() {
+        // do nothing
+    }
+}
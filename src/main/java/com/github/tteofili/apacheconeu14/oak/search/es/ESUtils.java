@@ -16,20 +16,118 @@
  */
 package com.github.tteofili.apacheconeu14.oak.search.es;
 
+import java.io.IOException;
+
 import org.elasticsearch.client.Client;
 import org.elasticsearch.client.transport.TransportClient;
 import org.elasticsearch.common.transport.InetSocketTransportAddress;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.common.xcontent.XContentFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 /**
  * Utility class for ES
  */
 public class ESUtils {
 
+    public static final String INDEX_NAME = "oak";
+
+    public static final String TYPE_NAME = "node";
+
+    public static final String PATH = "path";
+
+    /**
+     * all the ancestor paths of a node, for restricting queries to a subtree
+     */
+    public static final String ANCESTORS = ":ancestors";
+
+    public static final String DEPTH = ":depth";
+
+    /**
+     * suffix of the untokenized copy of string fields, used for exact matches and sorting
+     */
+    public static final String RAW = ".raw";
+
+    /**
+     * maximum length of the values of the untokenized copies, longer values are only in the tokenized field
+     */
+    public static final int IGNORE_ABOVE = 10000;
+
+    /**
+     * the names of the string properties having values longer than {@link #IGNORE_ABOVE}
+     */
+    public static final String TRUNCATED = ":truncated";
+
+    private static final Logger log = LoggerFactory.getLogger(ESUtils.class);
+
     private static final Client client = new TransportClient()
             .addTransportAddress(new InetSocketTransportAddress("127.0.0.1", 9300));
 
+    private static ESIndexStatistics statistics;
+
+    private static volatile boolean indexChecked;
+
     public static Client getClient() {
         return client;
     }
 
+    public static synchronized ESIndexStatistics getStatistics() {
+        if (statistics == null) {
+            statistics = new ESIndexStatistics(client);
+        }
+        return statistics;
+    }
+
+    /**
+     * creates the index, with the mapping of the path fields and an untokenized copy of each string, if it
+     * doesn't exist yet
+     */
+    public static void ensureIndex() {
+        if (indexChecked) {
+            return;
+        }
+        synchronized (ESUtils.class) {
+            if (indexChecked) {
+                return;
+            }
+            try {
+                if (!client.admin().indices().prepareExists(INDEX_NAME).execute().actionGet().isExists()) {
+                    client.admin().indices().prepareCreate(INDEX_NAME).addMapping(TYPE_NAME, createMapping())
+                            .execute().actionGet();
+                }
+                indexChecked = true;
+            } catch (Exception e) {
+                log.error("could not create index {}", INDEX_NAME, e);
+            }
+        }
+    }
+
+    private static XContentBuilder createMapping() throws IOException {
+        return XContentFactory.jsonBuilder()
+                .startObject()
+                .startObject(TYPE_NAME)
+                .startArray("dynamic_templates")
+                .startObject()
+                .startObject("strings")
+                .field("match_mapping_type", "string")
+                .startObject("mapping")
+                .field("type", "string")
+                .startObject("fields")
+                .startObject(RAW.substring(1)).field("type", "string").field("index", "not_analyzed").field("ignore_above", IGNORE_ABOVE).endObject()
+                .endObject()
+                .endObject()
+                .endObject()
+                .endObject()
+                .endArray()
+                .startObject("properties")
+                .startObject(PATH).field("type", "string").field("index", "not_analyzed").endObject()
+                .startObject(ANCESTORS).field("type", "string").field("index", "not_analyzed").endObject()
+                .startObject(DEPTH).field("type", "integer").endObject()
+                .startObject(TRUNCATED).field("type", "string").field("index", "not_analyzed").endObject()
+                .endObject()
+                .endObject()
+                .endObject();
+    }
+
 }
@@ -0,0 +1,287 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.tteofili.apacheconeu14.oak.search.nls;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.opennlp.utils.cfg.Rule;
+
+/**
+ * A PCFG in Chomsky normal form compiled to primitive tables: symbols and terminals are interned to int ids,
+ * binary rules are kept in arrays and the CKY chart is reused per thread, so that parsing a sentence doesn't
+ * allocate.
+ * Symbols deriving the empty terminal (such as {@code E}, expanding to {@code ""}) are nullable: a binary rule having a nullable child
+ * also applies as a unary rule to its other child, so that sentences parse with single spaces as well as with
+ * the empty tokens of repeated spaces.
+ */
+public class CompiledPCFG {
+
+    private final int start;
+    private final int symbols;
+
+    // binary rules, parent expanding to left and right
+    private final int[] binaryParent;
+    private final int[] binaryLeft;
+    private final int[] binaryRight;
+
+    // unary rules, derived from the binary rules having a nullable child
+    private final int[] unaryParent;
+    private final int[] unaryChild;
+
+    // lexical rules: lexical[terminal * symbols + symbol]
+    private final String[] terminals;
+    private final boolean[] lexical;
+
+    // open addressing table of terminal ids (+1, 0 means empty slot)
+    private final int[] terminalTable;
+    private final int terminalMask;
+
+    private final ThreadLocal<Chart> charts = new ThreadLocal<Chart>() {
+        @Override
+        protected Chart initialValue() {
+            return new Chart();
+        }
+    };
+
+    public CompiledPCFG(List<String> nonTerminals, Map<Rule, Double> rules, String startSymbol) {
+        this.symbols = nonTerminals.size();
+        this.start = nonTerminals.indexOf(startSymbol);
+
+        // rules with a zero probability can't be part of a parse with a positive probability
+        List<Rule> binaryRules = new ArrayList<Rule>();
+        List<String> terminalList = new ArrayList<String>();
+        boolean[] nullable = new boolean[symbols];
+        for (Map.Entry<Rule, Double> entry : rules.entrySet()) {
+            Rule rule = entry.getKey();
+            String[] expansion = rule.getExpansion();
+            if (entry.getValue() <= 0d) {
+                continue;
+            }
+            if (expansion.length == 2) {
+                binaryRules.add(rule);
+            } else if (expansion.length == 1) {
+                if (!terminalList.contains(expansion[0])) {
+                    terminalList.add(expansion[0]);
+                }
+                int symbol = nonTerminals.indexOf(rule.getEntry());
+                if (expansion[0].length() == 0 && symbol >= 0) {
+                    nullable[symbol] = true;
+                }
+            }
+        }
+
+        binaryParent = new int[binaryRules.size()];
+        binaryLeft = new int[binaryRules.size()];
+        binaryRight = new int[binaryRules.size()];
+        for (int r = 0; r < binaryRules.size(); r++) {
+            Rule rule = binaryRules.get(r);
+            binaryParent[r] = nonTerminals.indexOf(rule.getEntry());
+            binaryLeft[r] = nonTerminals.indexOf(rule.getExpansion()[0]);
+            binaryRight[r] = nonTerminals.indexOf(rule.getExpansion()[1]);
+        }
+
+        // symbols expanding to nullable symbols only are nullable too
+        boolean changed = true;
+        while (changed) {
+            changed = false;
+            for (int r = 0; r < binaryParent.length; r++) {
+                if (!nullable[binaryParent[r]] && nullable[binaryLeft[r]] && nullable[binaryRight[r]]) {
+                    nullable[binaryParent[r]] = true;
+                    changed = true;
+                }
+            }
+        }
+        List<int[]> unaryRules = new ArrayList<int[]>();
+        for (int r = 0; r < binaryParent.length; r++) {
+            if (nullable[binaryRight[r]]) {
+                unaryRules.add(new int[]{binaryParent[r], binaryLeft[r]});
+            }
+            if (nullable[binaryLeft[r]]) {
+                unaryRules.add(new int[]{binaryParent[r], binaryRight[r]});
+            }
+        }
+        unaryParent = new int[unaryRules.size()];
+        unaryChild = new int[unaryRules.size()];
+        for (int r = 0; r < unaryRules.size(); r++) {
+            unaryParent[r] = unaryRules.get(r)[0];
+            unaryChild[r] = unaryRules.get(r)[1];
+        }
+
+        terminals = terminalList.toArray(new String[terminalList.size()]);
+        lexical = new boolean[terminals.length * symbols];
+        for (Map.Entry<Rule, Double> entry : rules.entrySet()) {
+            String[] expansion = entry.getKey().getExpansion();
+            int symbol = nonTerminals.indexOf(entry.getKey().getEntry());
+            if (expansion.length == 1 && symbol >= 0 && entry.getValue() > 0d) {
+                lexical[terminalList.indexOf(expansion[0]) * symbols + symbol] = true;
+            }
+        }
+
+        int capacity = Integer.highestOneBit(Math.max(terminals.length, 1) * 4);
+        terminalTable = new int[capacity];
+        terminalMask = capacity - 1;
+        for (int t = 0; t < terminals.length; t++) {
+            String terminal = terminals[t];
+            int slot = hash(terminal, 0, terminal.length()) & terminalMask;
+            while (terminalTable[slot] != 0) {
+                slot = (slot + 1) & terminalMask;
+            }
+            terminalTable[slot] = t + 1;
+        }
+    }
+
+    /**
+     * Parses the sentence, split on single spaces the same way {@code sentence.split(" ")} does.
+     * Since trailing empty tokens are dropped, the rightmost leaf of any parse is the last token.
+     *
+     * @param sentence the sentence to parse
+     * @return the terminal of the rightmost leaf, or {@code null} if the sentence has no parse with a positive
+     * probability
+     */
+    public String parseRightmostTerminal(String sentence) {
+        Chart chart = charts.get();
+        int n = chart.tokenize(sentence);
+        if (n == 0) {
+            return null;
+        }
+        chart.ensureCapacity(n, symbols);
+        boolean[] derives = chart.derives;
+
+        for (int i = 0; i < n; i++) {
+            int terminal = chart.tokenTerminal[i];
+            int cell = (i * n + i) * symbols;
+            for (int x = 0; x < symbols; x++) {
+                derives[cell + x] = terminal >= 0 && lexical[terminal * symbols + x];
+            }
+            applyUnaryRules(derives, cell);
+        }
+
+        for (int l = 1; l < n; l++) {
+            for (int i = 0; i < n - l; i++) {
+                int j = i + l;
+                int cell = (i * n + j) * symbols;
+                for (int x = 0; x < symbols; x++) {
+                    derives[cell + x] = false;
+                }
+                for (int r = 0; r < binaryParent.length; r++) {
+                    int target = cell + binaryParent[r];
+                    for (int s = i; s < j && !derives[target]; s++) {
+                        derives[target] = derives[(i * n + s) * symbols + binaryLeft[r]]
+                                && derives[((s + 1) * n + j) * symbols + binaryRight[r]];
+                    }
+                }
+                applyUnaryRules(derives, cell);
+            }
+        }
+
+        return derives[(n - 1) * symbols + start] ? terminals[chart.tokenTerminal[n - 1]] : null;
+    }
+
+    /**
+     * closes the cell under the unary rules, which may chain (e.g. VVP to VP to Vi)
+     */
+    private void applyUnaryRules(boolean[] derives, int cell) {
+        boolean changed = true;
+        while (changed) {
+            changed = false;
+            for (int r = 0; r < unaryParent.length; r++) {
+                if (!derives[cell + unaryParent[r]] && derives[cell + unaryChild[r]]) {
+                    derives[cell + unaryParent[r]] = true;
+                    changed = true;
+                }
+            }
+        }
+    }
+
+    /**
+     * @param sentence a sentence, split as in {@link #parseRightmostTerminal(String)}
+     * @return {@code true} if every token of the sentence is a terminal of this grammar, {@code false} if the
+     * sentence can't be parsed at all
+     */
+    public boolean hasOnlyTerminals(String sentence) {
+        Chart chart = charts.get();
+        int n = chart.tokenize(sentence);
+        for (int i = 0; i < n; i++) {
+            if (chart.tokenTerminal[i] < 0) {
+                return false;
+            }
+        }
+        return n > 0;
+    }
+
+    private int lookupTerminal(String sentence, int from, int to) {
+        int slot = hash(sentence, from, to) & terminalMask;
+        int length = to - from;
+        int id;
+        while ((id = terminalTable[slot]) != 0) {
+            String terminal = terminals[id - 1];
+            if (terminal.length() == length && sentence.regionMatches(from, terminal, 0, length)) {
+                return id - 1;
+            }
+            slot = (slot + 1) & terminalMask;
+        }
+        return -1;
+    }
+
+    private static int hash(String s, int from, int to) {
+        int h = 0;
+        for (int i = from; i < to; i++) {
+            h = 31 * h + s.charAt(i);
+        }
+        return h ^ (h >>> 16);
+    }
+
+    private class Chart {
+        private int[] tokenTerminal = new int[16];
+        private boolean[] derives = new boolean[0];
+
+        /**
+         * splits on ' ' dropping trailing empty tokens, as {@link String#split(String)} does
+         */
+        private int tokenize(String sentence) {
+            int n = 0;
+            int nonEmpty = 0;
+            int from = 0;
+            int length = sentence.length();
+            for (int i = 0; i <= length; i++) {
+                if (i == length || sentence.charAt(i) == ' ') {
+                    if (n == tokenTerminal.length) {
+                        int[] grown = new int[n * 2];
+                        System.arraycopy(tokenTerminal, 0, grown, 0, n);
+                        tokenTerminal = grown;
+                    }
+                    tokenTerminal[n++] = lookupTerminal(sentence, from, i);
+                    if (i > from) {
+                        nonEmpty = n;
+                    }
+                    from = i + 1;
+                }
+            }
+            // a sentence without separators is a single token, even if empty
+            return sentence.indexOf(' ') < 0 ? 1 : nonEmpty;
+        }
+
+        private void ensureCapacity(int n, int symbols) {
+            int size = n * n * symbols;
+            if (derives.length < size) {
+                derives = new boolean[size];
+            }
+        }
+    }
+}
@@ -18,63 +18,287 @@ package com.github.tteofili.apacheconeu14.oak.search.nls;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.net.URLEncoder;
+import java.util.HashMap;
+import java.util.Map;
 
-import org.apache.lucene.analysis.standard.StandardAnalyzer;
-import org.apache.lucene.index.DirectoryReader;
+import com.github.tteofili.apacheconeu14.oak.search.util.IndexDefinitions;
+import org.apache.jackrabbit.oak.api.PropertyState;
+import org.apache.jackrabbit.oak.api.Type;
+import org.apache.jackrabbit.oak.spi.state.NodeBuilder;
+import org.apache.jackrabbit.oak.spi.state.NodeState;
 import org.apache.lucene.index.IndexWriter;
-import org.apache.lucene.index.IndexWriterConfig;
 import org.apache.lucene.search.IndexSearcher;
 import org.apache.lucene.store.Directory;
 import org.apache.lucene.store.FSDirectory;
-import org.apache.lucene.store.NoLockFactory;
-import org.elasticsearch.common.lucene.Lucene;
+import org.apache.lucene.store.LockFactory;
+import org.apache.lucene.store.MMapDirectory;
+import org.apache.lucene.store.NIOFSDirectory;
+import org.apache.lucene.store.NRTCachingDirectory;
+import org.apache.lucene.store.NativeFSLockFactory;
+import org.apache.lucene.store.SimpleFSDirectory;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 /**
- * Utility class for fetching the underlying Lucene index
+ * Utility class for fetching the underlying Lucene indexes
  */
 public class IndexUtils {
 
+    /**
+     * the path of a node, the key of its doc, also available as doc values
+     */
+    public static final String PATH = "path";
+
+    /**
+     * the parent path of a node
+     */
+    public static final String PARENT = ":parent";
+
+    /**
+     * all the ancestor paths of a node, for restricting queries to a subtree
+     */
+    public static final String ANCESTORS = ":ancestors";
+
+    public static final String DEPTH = ":depth";
+
+    /**
+     * hidden property of the definition holding the version of the format its docs are written in
+     */
+    public static final String FORMAT_VERSION = ":formatVersion";
+
+    /**
+     * the version of the format of the docs, to be increased whenever docs written by older versions can't
+     * be read or updated anymore: 2 indexes the path untokenized, 3 gives each definition without a "path"
+     * its own directory
+     */
+    public static final long CURRENT_FORMAT_VERSION = 3;
+
+    /**
+     * number of results fetched by the first page of an NLS query
+     */
+    public static final int PAGE_SIZE = Integer.getInteger("nls.pageSize", 50);
+
+    /**
+     * maximum number of results per page, as pages double in size while a query is iterated
+     */
+    public static final int MAX_PAGE_SIZE = Integer.getInteger("nls.maxPageSize", 5000);
+
+    /**
+     * how often (in milliseconds) searchers are refreshed in the background
+     */
+    public static final long REFRESH_INTERVAL = Long.getLong("nls.refreshInterval", 1000);
+
+    /**
+     * how long (in seconds) the searcher of a query is kept for fetching its next pages, once a newer searcher
+     * has been opened
+     */
+    public static final long SEARCHER_LEASE = Long.getLong("nls.searcherLease", 60);
+
+    /**
+     * how often (in milliseconds) changes are committed to Lucene, 0 to commit on every Oak commit
+     */
+    public static final long COMMIT_INTERVAL = Long.getLong("nls.commitInterval", 0);
+
+    /**
+     * number of changed docs which triggers a commit before the commit interval expires
+     */
+    public static final int MAX_UNCOMMITTED_DOCS = Integer.getInteger("nls.maxUncommittedDocs", 10000);
+
+    /**
+     * default {@link Directory} implementation of the NLS indexes (fs, mmap, nio or simple), overridden by the
+     * "directory" property of the index definition
+     */
+    public static final String DIRECTORY_TYPE = System.getProperty("nls.directory", "fs");
+
+    /**
+     * default location of the NLS indexes, each definition has its own directory below it named by its unique
+     * id; overridden by the "path" property of the index definition (for indexes stored in Oak, the location
+     * of their local copy)
+     */
+    public static final String DIRECTORY_PATH = System.getProperty("nls.path", "/tmp/nls-lucene");
+
+    /**
+     * whether small, freshly flushed segments are cached in memory, overridden by the "nrtCaching" property
+     * of the index definition; "nrtMaxMergeSizeMB" and "nrtMaxCachedMB" bound the cache
+     */
+    public static final boolean NRT_CACHING = Boolean.getBoolean("nls.nrtCaching");
+
+    /**
+     * value of the "storage" property of the definitions of indexes stored in Oak, with "path" as local cache
+     */
+    public static final String STORAGE_OAK = "oak";
+
+    private static final double DEFAULT_NRT_MAX_MERGE_SIZE_MB = 5;
+    private static final double DEFAULT_NRT_MAX_CACHED_MB = 60;
+
     private static Logger log = LoggerFactory.getLogger(IndexUtils.class);
 
-    private static Directory directory = openDir();
-    private static IndexWriter cachedIndexWriter;
+    /**
+     * index nodes, by directory path
+     */
+    private static final Map<String, NLSIndexNode> indexNodes = new HashMap<String, NLSIndexNode>();
 
-    private static FSDirectory openDir() {
-        try {
-            File path = new File("/tmp/nls-lucene");
-            if (!path.exists()) {
-                assert path.mkdirs();
-            }
-            return FSDirectory.open(path, NoLockFactory.getNoLockFactory());
-        } catch (IOException e) {
-            log.error("could not open /tmp/nls-lucene", e);
+    /**
+     * the directory settings each index node has been opened with, by directory path
+     */
+    private static final Map<String, String> indexNodeSettings = new HashMap<String, String>();
+
+    /**
+     * index nodes of the indexes stored in Oak, by repository path of their definition
+     */
+    private static final Map<String, NLSIndexNode> oakIndexNodes = new HashMap<String, NLSIndexNode>();
+
+    private static Directory openDir(String type, File path, boolean nrtCaching, double maxMergeSizeMB,
+                                     double maxCachedMB) throws IOException {
+        if (!path.exists() && !path.mkdirs()) {
+            throw new IOException("could not create " + path);
+        }
+        LockFactory lockFactory = new NativeFSLockFactory(path);
+        Directory directory;
+        if ("mmap".equals(type)) {
+            directory = new MMapDirectory(path, lockFactory);
+        } else if ("nio".equals(type)) {
+            directory = new NIOFSDirectory(path, lockFactory);
+        } else if ("simple".equals(type)) {
+            directory = new SimpleFSDirectory(path, lockFactory);
+        } else {
+            directory = FSDirectory.open(path, lockFactory);
+        }
+        if (nrtCaching) {
+            directory = new NRTCachingDirectory(directory, maxMergeSizeMB, maxCachedMB);
         }
-        return null;
+        log.info("opened {} NLS index at {}", directory, path);
+        return directory;
     }
 
     public static IndexWriter getWriter() {
-        if (directory == null) {
-            directory = openDir();
+        return getIndexNode().getWriter();
+    }
+
+    /**
+     * @return the index node of the default directory
+     */
+    public static NLSIndexNode getIndexNode() {
+        return getIndexNode(DIRECTORY_TYPE, DIRECTORY_PATH, NRT_CACHING, DEFAULT_NRT_MAX_MERGE_SIZE_MB,
+                DEFAULT_NRT_MAX_CACHED_MB);
+    }
+
+    /**
+     * @param path       the repository path of an NLS index definition
+     * @param definition the NLS index definition
+     * @return the index node of the directory configured by the definition
+     */
+    public static NLSIndexNode getIndexNode(String path, NodeState definition) {
+        if (isStoredInOak(definition)) {
+            return getOakIndexNode(path, definition);
         }
-        try {
-            cachedIndexWriter = new IndexWriter(directory, new IndexWriterConfig(Lucene.VERSION, new StandardAnalyzer()));
-        } catch (Exception e) {
-            log.error("could not create index writer", e);
+        return getIndexNode(definition);
+    }
+
+    private static NLSIndexNode getIndexNode(NodeState definition) {
+        String type = definition.getString("directory");
+        String path = definition.getString("path");
+        if (path == null) {
+            // definitions which haven't been indexed yet have no id, nor docs
+            String id = definition.getString(IndexDefinitions.UID);
+            path = id != null ? new File(DIRECTORY_PATH, id).getPath() : DIRECTORY_PATH;
         }
-        return cachedIndexWriter;
+        boolean nrtCaching = definition.hasProperty("nrtCaching") ? definition.getBoolean("nrtCaching") : NRT_CACHING;
+        return getIndexNode(type != null ? type : DIRECTORY_TYPE, path, nrtCaching,
+                getDouble(definition, "nrtMaxMergeSizeMB", DEFAULT_NRT_MAX_MERGE_SIZE_MB),
+                getDouble(definition, "nrtMaxCachedMB", DEFAULT_NRT_MAX_CACHED_MB));
     }
 
-    public static IndexSearcher getSearcher() {
-        if (directory == null) {
-            directory = openDir();
+    private static synchronized NLSIndexNode getIndexNode(String type, String path, boolean nrtCaching,
+                                                          double maxMergeSizeMB, double maxCachedMB) {
+        File file = new File(path).getAbsoluteFile();
+        String settings = type + ",nrtCaching=" + nrtCaching + ",nrtMaxMergeSizeMB=" + maxMergeSizeMB
+                + ",nrtMaxCachedMB=" + maxCachedMB;
+        NLSIndexNode indexNode = indexNodes.get(file.getPath());
+        if (indexNode != null && !settings.equals(indexNodeSettings.get(file.getPath()))) {
+            // only one writer can be open on a directory, so the index is closed and opened again
+            log.info("reopening NLS index at {} with {}", file, settings);
+            indexNode.close();
+            indexNode = null;
         }
+        if (indexNode == null) {
+            try {
+                indexNode = new NLSIndexNode(openDir(type, file, nrtCaching, maxMergeSizeMB, maxCachedMB),
+                        REFRESH_INTERVAL, COMMIT_INTERVAL, MAX_UNCOMMITTED_DOCS, SEARCHER_LEASE);
+            } catch (IOException e) {
+                throw new RuntimeException("could not open NLS index at " + path, e);
+            }
+            indexNodes.put(file.getPath(), indexNode);
+            indexNodeSettings.put(file.getPath(), settings);
+        }
+        return indexNode;
+    }
+
+    /**
+     * @param definition an NLS index definition
+     * @return a writer for the index of the definition being committed
+     */
+    public static NLSIndexWriter getIndexWriter(NodeBuilder definition) {
+        // the editor doesn't know the path of its definition, so its directory (or local copy) is named by a unique id
+        String id = IndexDefinitions.getUniqueId(definition);
+        NodeState state = definition.getNodeState();
+        if (isStoredInOak(state)) {
+            File localDir = new File(new File(getLocalDirectory(state), "write"), id);
+            return new OakIndexWriter(definition.child(OakDirectory.DATA), localDir);
+        }
+        return getIndexNode(state);
+    }
+
+    public static boolean isStoredInOak(NodeState definition) {
+        return STORAGE_OAK.equals(definition.getString("storage"));
+    }
+
+    private static synchronized NLSIndexNode getOakIndexNode(String path, NodeState definition) {
+        NLSIndexNode indexNode = oakIndexNodes.get(path);
+        if (indexNode == null) {
+            File file = new File(new File(getLocalDirectory(definition), "read"), encode(path));
+            try {
+                indexNode = new NLSIndexNode(new OakDirectory(definition.getChildNode(OakDirectory.DATA), file),
+                        REFRESH_INTERVAL, SEARCHER_LEASE);
+            } catch (IOException e) {
+                throw new RuntimeException("could not open NLS index cache at " + file, e);
+            }
+            oakIndexNodes.put(path, indexNode);
+        }
+        return indexNode;
+    }
+
+    private static File getLocalDirectory(NodeState definition) {
+        String path = definition.getString("path");
+        return new File(path != null ? path : DIRECTORY_PATH).getAbsoluteFile();
+    }
+
+    /**
+     * @return a file name unique to the given repository path
+     */
+    private static String encode(String path) {
         try {
-            return new IndexSearcher(DirectoryReader.open(directory));
-        } catch (Exception e) {
-            log.error("could not create index searcher", e);
+            return URLEncoder.encode(path, "UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
         }
-        return null;
+    }
+
+    private static double getDouble(NodeState definition, String name, double defaultValue) {
+        PropertyState property = definition.getProperty(name);
+        return property != null ? property.getValue(Type.DOUBLE) : defaultValue;
+    }
+
+    /**
+     * @return the shared searcher, to be released through {@link #releaseSearcher(IndexSearcher)}
+     */
+    public static IndexSearcher acquireSearcher() {
+        return getIndexNode().acquireSearcher();
+    }
+
+    public static void releaseSearcher(IndexSearcher searcher) {
+        getIndexNode().releaseSearcher(searcher);
     }
 }
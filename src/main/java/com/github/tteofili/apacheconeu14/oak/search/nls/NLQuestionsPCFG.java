@@ -22,6 +22,10 @@ import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 
+import com.google.common.base.Optional;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
 import org.apache.opennlp.utils.cfg.ProbabilisticContextFreeGrammar;
 import org.apache.opennlp.utils.cfg.Rule;
 
@@ -30,7 +34,18 @@ import org.apache.opennlp.utils.cfg.Rule;
  */
 public class NLQuestionsPCFG {
 
+    private static final int CACHE_SIZE = Integer.getInteger("nls.questionCacheSize", 1000);
+
+    private static final NLQuestionsPCFG DEFAULT = new NLQuestionsPCFG();
+
     private final ProbabilisticContextFreeGrammar grammar;
+    private final CompiledPCFG compiledGrammar;
+
+    /**
+     * filtered questions (absent if they can't be parsed), by normalized question
+     */
+    private final Cache<String, Optional<String>> filteredQuestions = CacheBuilder.newBuilder()
+            .maximumSize(CACHE_SIZE).recordStats().build();
 
     public NLQuestionsPCFG() {
         List<String> nonTerminals = new LinkedList<String>();
@@ -126,9 +141,81 @@ public class NLQuestionsPCFG {
         rules.put(new Rule("Adv", "there"), 0.1);
 
         grammar = new ProbabilisticContextFreeGrammar(nonTerminals, terminals, rules, startSymbol);
+        compiledGrammar = new CompiledPCFG(nonTerminals, rules, startSymbol);
     }
 
+    /**
+     * @param sentence a question
+     * @return the interesting part of the question, or {@code null} if the sentence isn't a question
+     */
     public String filterQuestion(String sentence) {
+        String key = normalize(sentence);
+        Optional<String> filteredQuestion = filteredQuestions.getIfPresent(key);
+        if (filteredQuestion == null) {
+            filteredQuestion = Optional.fromNullable(parse(key));
+            filteredQuestions.put(key, filteredQuestion);
+        }
+        return filteredQuestion.orNull();
+    }
+
+    /**
+     * @return the grammar shared by all the NLS indexes
+     */
+    public static NLQuestionsPCFG getDefault() {
+        return DEFAULT;
+    }
+
+    /**
+     * @return hit and miss counts of the filtered questions cache of the grammar shared by all the NLS indexes
+     */
+    public static CacheStats getDefaultCacheStats() {
+        return DEFAULT.getCacheStats();
+    }
+
+    /**
+     * @return hit and miss counts of the filtered questions cache
+     */
+    public CacheStats getCacheStats() {
+        return filteredQuestions.stats();
+    }
+
+    private String parse(String sentence) {
+        // keywords outside of the grammar can't form a question, no need to parse them
+        if (!compiledGrammar.hasOnlyTerminals(sentence)) {
+            return null;
+        }
+        String rightmostTerminal = compiledGrammar.parseRightmostTerminal(sentence);
+        if (rightmostTerminal != null) {
+            return rightmostTerminal;
+        }
+        // not in the language of the grammar (e.g. "what do you see"), the reference implementation still
+        // returns its best effort
+        return filterQuestionWithGrammar(sentence);
+    }
+
+    CompiledPCFG getCompiledGrammar() {
+        return compiledGrammar;
+    }
+
+    /**
+     * trailing spaces don't make a different question, as they're dropped when splitting it into tokens
+     */
+    private static String normalize(String sentence) {
+        int end = sentence.length();
+        while (end > 0 && sentence.charAt(end - 1) == ' ') {
+            end--;
+        }
+        return end > 0 ? sentence.substring(0, end) : sentence;
+    }
+
+    /**
+     * filters the question with the reference CKY parser of the grammar, which the compiled one is checked
+     * and benchmarked against
+     *
+     * @param sentence a question
+     * @return the interesting part of the question, or {@code null} if the sentence isn't a question
+     */
+    public String filterQuestionWithGrammar(String sentence) {
         List<String> whitespacedSentence = Arrays.asList(sentence.split(" "));
         ProbabilisticContextFreeGrammar.BackPointer backPointer = grammar.cky(whitespacedSentence);
 
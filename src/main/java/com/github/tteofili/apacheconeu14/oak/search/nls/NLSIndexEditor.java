@@ -16,55 +16,103 @@
  */
 package com.github.tteofili.apacheconeu14.oak.search.nls;
 
+import javax.jcr.PropertyType;
 import java.io.IOException;
-import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 
+import com.github.tteofili.apacheconeu14.oak.search.util.IndexingRules;
+import com.github.tteofili.apacheconeu14.oak.search.util.PathFilter;
+import com.github.tteofili.apacheconeu14.oak.search.util.PendingTexts;
+import com.github.tteofili.apacheconeu14.oak.search.util.TextExtractionService;
 import org.apache.jackrabbit.oak.api.CommitFailedException;
 import org.apache.jackrabbit.oak.api.PropertyState;
+import org.apache.jackrabbit.oak.api.Type;
 import org.apache.jackrabbit.oak.plugins.index.IndexEditor;
 import org.apache.jackrabbit.oak.spi.commit.Editor;
 import org.apache.jackrabbit.oak.spi.state.NodeState;
+import org.apache.jackrabbit.util.ISO8601;
 import org.apache.lucene.document.Document;
+import org.apache.lucene.document.DoubleDocValuesField;
+import org.apache.lucene.document.DoubleField;
 import org.apache.lucene.document.Field;
+import org.apache.lucene.document.IntField;
+import org.apache.lucene.document.LongField;
+import org.apache.lucene.document.NumericDocValuesField;
+import org.apache.lucene.document.SortedDocValuesField;
+import org.apache.lucene.document.StringField;
 import org.apache.lucene.document.TextField;
-import org.apache.lucene.index.IndexWriter;
 import org.apache.lucene.index.Term;
+import org.apache.lucene.util.BytesRef;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import static org.apache.jackrabbit.oak.commons.PathUtils.concat;
+import static org.apache.jackrabbit.oak.commons.PathUtils.denotesRoot;
+import static org.apache.jackrabbit.oak.commons.PathUtils.getParentPath;
+import static org.apache.jackrabbit.oak.plugins.memory.EmptyNodeState.EMPTY_NODE;
 
 /**
- * Demo code for indexing data for NLS
+ * Demo code for indexing data for NLS, the changed docs are written to the {@link NLSIndexWriter}
+ * which is told when the whole commit has been processed
  */
 public class NLSIndexEditor implements IndexEditor {
 
+    /**
+     * name of the index definition property listing the properties which queries can be sorted by, each as
+     * {@code name} or {@code name|Type} where the type (Long, Date, Double, String, the default) fixes how the
+     * property is sorted whatever the type of its values on each node
+     */
+    public static final String ORDERED_PROPERTIES = "orderedProps";
+
+    private static final int MAX_SORTED_VALUE_LENGTH = 32766;
+
     private final Logger log = LoggerFactory.getLogger(getClass());
 
+    /**
+     * state of the commit shared by all the editors
+     */
+    private final Context context;
+    private final NLSIndexEditor parent;
     private final String name;
-    private final IndexWriter writer;
+    private final PathFilter.Node filter;
 
     private boolean changed;
 
+    /**
+     * computed on first use, from the (cached) path of the parent
+     */
     private String path;
 
-    private NLSIndexEditor parent;
-
-    public NLSIndexEditor(NLSIndexEditor parent, String name) {
+    private NLSIndexEditor(NLSIndexEditor parent, String name, PathFilter.Node filter) {
+        this.context = parent.context;
         this.parent = parent;
-        this.writer = parent.writer;
         this.name = name;
-        this.path = null;
+        this.filter = filter;
     }
 
-    public NLSIndexEditor(IndexWriter writer) {
-        this.writer = writer;
-        name = null;
-        path = "/";
+    public NLSIndexEditor(NLSIndexWriter indexWriter) {
+        this(indexWriter, EMPTY_NODE);
+    }
+
+    /**
+     * @param indexWriter the writer of the index
+     * @param definition  the index definition, whose "orderedProps" are indexed with doc values for sorting and
+     *                    whose {@link IndexingRules} select the indexed nodes
+     */
+    public NLSIndexEditor(NLSIndexWriter indexWriter, NodeState definition) {
+        this.context = new Context(indexWriter, definition, getOrderedProperties(definition));
+        this.filter = context.rules.getPathFilter().getRoot();
+        this.parent = null;
+        this.name = null;
+        this.path = "/";
     }
 
     private String getPath() {
-        if (parent != null && name != null) {
+        if (path == null) {
             path = concat(parent.getPath(), name);
         }
         return path;
@@ -77,69 +125,282 @@ public class NLSIndexEditor implements IndexEditor {
 
     @Override
     public void leave(NodeState before, NodeState after) throws CommitFailedException {
-        if (changed) {
-            try {
-                String path = getPath();
-                Document d = makeDocument(path, after);
-                if (d != null) {
-                    try {
-                        writer.updateDocument(newPathTerm(path), d);
-                        writer.commit();
-                    } catch (IOException e) {
-                        log.error("could not index doc at path {}", path, e);
-                    }
+        if (changed && filter.getResult() == PathFilter.Result.INCLUDE) {
+            String path = getPath();
+            if (context.rules.isIndexed(after)) {
+                // the ancestors paths are the ones already computed by the parent editors
+                List<String> ancestors = new ArrayList<String>();
+                for (NLSIndexEditor ancestor = parent; ancestor != null; ancestor = ancestor.parent) {
+                    ancestors.add(ancestor.getPath());
+                }
+                index(path, ancestors, after);
+            } else if (context.rules.isIndexed(before)) {
+                // not of an indexed type anymore
+                context.deletes.add(newPathTerm(path));
+                if (context.pendingTexts != null) {
+                    context.pendingTexts.deleted(path);
                 }
-            } finally {
-                // do nothing
             }
         }
-
+        if (parent == null) {
+            List<Term> deletes = context.deletes;
+            if (!deletes.isEmpty()) {
+                try {
+                    context.indexWriter.deleteDocuments(deletes.toArray(new Term[deletes.size()]));
+                } catch (IOException e) {
+                    log.error("could not delete {} docs", deletes.size(), e);
+                }
+            }
+            // one Lucene commit (or none, with group commit) per Oak commit
+            context.indexWriter.afterOakCommit();
+        }
     }
 
     private Term newPathTerm(String path) {
         if (!"/".equals(path) && !path.startsWith("/")) {
             path = "/" + path;
         }
-        return new Term("path", path);
+        return new Term(IndexUtils.PATH, path);
     }
 
-    private Document makeDocument(String path, NodeState nodeState) {
+    /**
+     * writes the doc of the node, which is indexed again once the text of its binaries is extracted if some
+     * wasn't available yet
+     *
+     * @param ancestors the paths of the ancestors of the node, from its parent up to the root
+     */
+    private void index(String path, List<String> ancestors, NodeState nodeState) {
+        PendingTexts.Entry entry = null;
+        if (context.pendingTexts != null) {
+            entry = context.pendingTexts.indexing(path, nodeState, new PendingTexts.Indexer() {
+                @Override
+                public void index(String path, NodeState state) {
+                    List<String> ancestors = new ArrayList<String>();
+                    for (String ancestor = path; !denotesRoot(ancestor); ) {
+                        ancestor = getParentPath(ancestor);
+                        ancestors.add(ancestor);
+                    }
+                    NLSIndexEditor.this.index(path, ancestors, state);
+                    context.indexWriter.afterOakCommit();
+                }
+            });
+        }
+        try {
+            context.indexWriter.updateDocument(newPathTerm(path), makeDocument(path, ancestors, nodeState, entry));
+        } catch (IOException e) {
+            log.error("could not index doc at path {}", path, e);
+        }
+        if (entry != null) {
+            context.pendingTexts.indexed(entry);
+        }
+    }
+
+    private Document makeDocument(String path, List<String> ancestors, NodeState nodeState,
+                                  TextExtractionService.Callback callback) {
         Document d = new Document();
-        d.add(new TextField("path", path, Field.Store.YES));
+        d.add(new StringField(IndexUtils.PATH, path, Field.Store.NO));
+        d.add(new SortedDocValuesField(IndexUtils.PATH, new BytesRef(path)));
+        if (!ancestors.isEmpty()) {
+            d.add(new StringField(IndexUtils.PARENT, ancestors.get(0), Field.Store.NO));
+        }
+        for (String ancestor : ancestors) {
+            d.add(new StringField(IndexUtils.ANCESTORS, ancestor, Field.Store.NO));
+        }
+        d.add(new IntField(IndexUtils.DEPTH, ancestors.size(), Field.Store.NO));
         for (PropertyState property : nodeState.getProperties()) {
-            d.add(new TextField(property.getName(), new StringReader(String.valueOf(property.getValue(property.getType())))));
+            if (context.rules.isIndexed(property.getName())) {
+                addFields(d, property, callback);
+            }
         }
         return d;
     }
 
+    /**
+     * indexes (and stores) each value of the property according to its type, plus doc values for the
+     * ordered properties
+     */
+    private void addFields(Document d, PropertyState property, TextExtractionService.Callback callback) {
+        String name = property.getName();
+        int tag = property.getType().tag();
+        if (tag == PropertyType.BINARY) {
+            // only the extracted text is indexed, texts still being extracted are added when the node is indexed again
+            for (int i = 0; i < property.count(); i++) {
+                String text = TextExtractionService.getDefault().getText(property.getValue(Type.BINARY, i), callback);
+                if (text != null) {
+                    d.add(new TextField(name, text, Field.Store.NO));
+                }
+            }
+            return;
+        }
+        for (int i = 0; i < property.count(); i++) {
+            switch (tag) {
+                case PropertyType.LONG:
+                    d.add(new LongField(name, property.getValue(Type.LONG, i), Field.Store.YES));
+                    break;
+                case PropertyType.DATE:
+                    Long time = getTime(property.getValue(Type.DATE, i));
+                    if (time != null) {
+                        d.add(new LongField(name, time, Field.Store.YES));
+                    } else {
+                        log.debug("skipping unparsable date {} of {}", property.getValue(Type.DATE, i), name);
+                    }
+                    break;
+                case PropertyType.DOUBLE:
+                case PropertyType.DECIMAL:
+                    d.add(new DoubleField(name, property.getValue(Type.DOUBLE, i), Field.Store.YES));
+                    break;
+                case PropertyType.STRING:
+                    d.add(new TextField(name, property.getValue(Type.STRING, i), Field.Store.YES));
+                    break;
+                default:
+                    // names, paths, references, booleans, ... are keywords
+                    d.add(new StringField(name, property.getValue(Type.STRING, i), Field.Store.YES));
+            }
+        }
+        Integer orderedType = context.orderedProperties.get(name);
+        if (orderedType != null && property.count() > 0) {
+            addDocValues(d, property, orderedType);
+        }
+    }
+
+    /**
+     * adds the doc values of an ordered property, converting its first value (doc values are single valued)
+     * to the type declared for the property, values which can't be converted are left out
+     */
+    private void addDocValues(Document d, PropertyState property, int type) {
+        String name = property.getName();
+        try {
+            switch (type) {
+                case PropertyType.LONG:
+                    d.add(new NumericDocValuesField(name, property.getValue(Type.LONG, 0)));
+                    break;
+                case PropertyType.DATE:
+                    Long time = getTime(property.getValue(Type.DATE, 0));
+                    if (time != null) {
+                        d.add(new NumericDocValuesField(name, time));
+                    }
+                    break;
+                case PropertyType.DOUBLE:
+                    d.add(new DoubleDocValuesField(name, property.getValue(Type.DOUBLE, 0)));
+                    break;
+                default:
+                    BytesRef value = new BytesRef(property.getValue(Type.STRING, 0));
+                    if (value.length <= MAX_SORTED_VALUE_LENGTH) {
+                        d.add(new SortedDocValuesField(name, value));
+                    }
+            }
+        } catch (IllegalArgumentException e) {
+            log.debug("{} can't be sorted as {}", name, PropertyType.nameFromValue(type), e);
+        }
+    }
+
+    /**
+     * @return the time of the given ISO8601 date, {@code null} if it can't be parsed
+     */
+    private static Long getTime(String date) {
+        Calendar calendar = ISO8601.parse(date);
+        return calendar != null ? calendar.getTimeInMillis() : null;
+    }
+
+    /**
+     * @return the doc values type ({@link PropertyType#LONG}, {@link PropertyType#DATE}, {@link PropertyType#DOUBLE}
+     * or {@link PropertyType#STRING}) of each ordered property of the definition, by property name
+     */
+    private Map<String, Integer> getOrderedProperties(NodeState definition) {
+        Map<String, Integer> orderedProperties = new HashMap<String, Integer>();
+        for (String orderedProperty : definition.getNames(ORDERED_PROPERTIES)) {
+            // '|' can't be part of a property name
+            int separator = orderedProperty.lastIndexOf('|');
+            int type = PropertyType.STRING;
+            if (separator >= 0) {
+                String typeName = orderedProperty.substring(separator + 1);
+                orderedProperty = orderedProperty.substring(0, separator);
+                try {
+                    type = PropertyType.valueFromName(typeName);
+                } catch (IllegalArgumentException e) {
+                    log.warn("unknown type {} of ordered property {}, sorting it as a string", typeName, orderedProperty);
+                }
+                if (type == PropertyType.DECIMAL) {
+                    type = PropertyType.DOUBLE;
+                } else if (type != PropertyType.LONG && type != PropertyType.DATE && type != PropertyType.DOUBLE) {
+                    type = PropertyType.STRING;
+                }
+            }
+            orderedProperties.put(orderedProperty, type);
+        }
+        return orderedProperties;
+    }
+
     @Override
     public void propertyAdded(PropertyState propertyState) throws CommitFailedException {
-        changed = true;
+        changed |= context.rules.isRelevant(propertyState.getName());
     }
 
     @Override
-    public void propertyChanged(PropertyState propertyState, PropertyState propertyState2) throws CommitFailedException {
-        changed = true;
+    public void propertyChanged(PropertyState before, PropertyState after) throws CommitFailedException {
+        changed |= context.rules.isRelevant(after.getName());
     }
 
     @Override
     public void propertyDeleted(PropertyState propertyState) throws CommitFailedException {
-        changed = true;
+        changed |= context.rules.isRelevant(propertyState.getName());
     }
 
     @Override
     public Editor childNodeAdded(String name, NodeState nodeState) throws CommitFailedException {
-        return new NLSIndexEditor(this, name);
+        return getChildEditor(name);
     }
 
     @Override
     public Editor childNodeChanged(String name, NodeState nodeState, NodeState nodeState2) throws CommitFailedException {
-        return new NLSIndexEditor(this, name);
+        return getChildEditor(name);
+    }
+
+    /**
+     * @return an editor for the child, {@code null} if its whole subtree is excluded
+     */
+    private NLSIndexEditor getChildEditor(String name) {
+        if (IndexingRules.isHidden(name)) {
+            return null;
+        }
+        PathFilter.Node childFilter = filter.getChild(name);
+        return childFilter.getResult() != PathFilter.Result.EXCLUDE ? new NLSIndexEditor(this, name, childFilter) : null;
     }
 
     @Override
-    public Editor childNodeDeleted(String s, NodeState nodeState) throws CommitFailedException {
-        // TODO : implement this
+    public Editor childNodeDeleted(String name, NodeState before) throws CommitFailedException {
+        if (IndexingRules.isHidden(name) || filter.getChild(name).getResult() == PathFilter.Result.EXCLUDE) {
+            return null;
+        }
+        // the whole subtree goes with the deletes of the commit, no need to visit it
+        String deletedPath = concat(getPath(), name);
+        context.deletes.add(newPathTerm(deletedPath));
+        context.deletes.add(new Term(IndexUtils.ANCESTORS, deletedPath));
+        if (context.pendingTexts != null) {
+            context.pendingTexts.subtreeDeleted(deletedPath);
+        }
         return null;
     }
+
+    private static class Context {
+        private final NLSIndexWriter indexWriter;
+        private final PendingTexts pendingTexts;
+        /**
+         * doc values type of each ordered property
+         */
+        private final Map<String, Integer> orderedProperties;
+        private final IndexingRules rules;
+        /**
+         * terms of the docs deleted by the commit (path and ancestor terms for deleted subtrees)
+         */
+        private final List<Term> deletes;
+
+        private Context(NLSIndexWriter indexWriter, NodeState definition, Map<String, Integer> orderedProperties) {
+            this.indexWriter = indexWriter;
+            this.pendingTexts = indexWriter.getPendingTexts();
+            this.orderedProperties = orderedProperties;
+            this.rules = IndexingRules.from(definition);
+            this.deletes = new ArrayList<Term>();
+        }
+    }
 }
@@ -17,16 +17,23 @@
 package com.github.tteofili.apacheconeu14.oak.search.nls;
 
 import javax.annotation.Nonnull;
+import java.io.IOException;
 
 import org.apache.felix.scr.annotations.Component;
 import org.apache.felix.scr.annotations.Service;
 import org.apache.jackrabbit.oak.api.CommitFailedException;
+import org.apache.jackrabbit.oak.api.PropertyState;
+import org.apache.jackrabbit.oak.api.Type;
 import org.apache.jackrabbit.oak.plugins.index.IndexEditorProvider;
 import org.apache.jackrabbit.oak.plugins.index.IndexUpdateCallback;
 import org.apache.jackrabbit.oak.spi.commit.Editor;
 import org.apache.jackrabbit.oak.spi.state.NodeBuilder;
 import org.apache.jackrabbit.oak.spi.state.NodeState;
 import org.elasticsearch.client.Client;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import static org.apache.jackrabbit.oak.plugins.index.IndexConstants.REINDEX_PROPERTY_NAME;
 
 /**
  * provider for {@link com.github.tteofili.apacheconeu14.oak.search.nls.NLSIndexEditorProvider}
@@ -35,17 +42,51 @@ import org.elasticsearch.client.Client;
 @Service(value = IndexEditorProvider.class)
 public class NLSIndexEditorProvider implements IndexEditorProvider {
 
+    private final Logger log = LoggerFactory.getLogger(getClass());
+
     @Override
     public Editor getIndexEditor(@Nonnull String type, @Nonnull NodeBuilder nodeBuilder, @Nonnull NodeState nodeState,
                                  @Nonnull IndexUpdateCallback indexUpdateCallback) throws CommitFailedException {
+        if (!"nls".equals(type)) {
+            return null;
+        }
         Thread thread = Thread.currentThread();
         ClassLoader loader = thread.getContextClassLoader();
         thread.setContextClassLoader(Client.class.getClassLoader());
         try {
-            return "nls".equals(type) ? new NLSIndexEditor(IndexUtils.getWriter()) : null;
+            NLSIndexWriter indexWriter = IndexUtils.getIndexWriter(nodeBuilder);
+            checkFormatVersion(nodeBuilder, indexWriter);
+            return new NLSIndexEditor(indexWriter, nodeBuilder.getNodeState());
         } finally {
             thread.setContextClassLoader(loader);
         }
 
     }
+
+    /**
+     * docs written in an older format are dropped and written again: a reindex is requested if the index is
+     * not being reindexed already, and the old docs are deleted when it runs, which only affects the directory
+     * of the definition (unless several definitions are configured with the same "path").
+     * New definitions are just marked with the current version
+     */
+    private void checkFormatVersion(NodeBuilder definition, NLSIndexWriter indexWriter) throws CommitFailedException {
+        PropertyState version = definition.getProperty(IndexUtils.FORMAT_VERSION);
+        if (version != null && version.getValue(Type.LONG) == IndexUtils.CURRENT_FORMAT_VERSION) {
+            return;
+        }
+        if (definition.getBaseState().exists()) {
+            if (!definition.getBoolean(REINDEX_PROPERTY_NAME)) {
+                log.info("NLS index format changed from version {} to {}, reindexing",
+                        version != null ? version.getValue(Type.LONG) : 1, IndexUtils.CURRENT_FORMAT_VERSION);
+                definition.setProperty(REINDEX_PROPERTY_NAME, true);
+                return;
+            }
+            try {
+                indexWriter.deleteAll();
+            } catch (IOException e) {
+                throw new CommitFailedException(CommitFailedException.OAK, 1, "could not clear the NLS index", e);
+            }
+        }
+        definition.setProperty(IndexUtils.FORMAT_VERSION, IndexUtils.CURRENT_FORMAT_VERSION);
+    }
 }
@@ -0,0 +1,311 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.tteofili.apacheconeu14.oak.search.nls;
+
+import java.io.IOException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.github.tteofili.apacheconeu14.oak.search.util.PendingTexts;
+import org.apache.jackrabbit.oak.spi.state.NodeState;
+import org.apache.lucene.analysis.standard.StandardAnalyzer;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.SearcherLifetimeManager;
+import org.apache.lucene.search.SearcherManager;
+import org.apache.lucene.store.Directory;
+import org.elasticsearch.common.lucene.Lucene;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A Lucene index used for NLS, written by a single long lived {@link IndexWriter}, or read only if the index
+ * is stored in Oak through an {@link OakDirectory} (see {@link OakIndexWriter}).
+ * Changes are committed to Lucene once per Oak commit or, if a {@code commitInterval} is set, every
+ * {@code commitInterval} milliseconds or as soon as {@code maxUncommittedDocs} docs are pending (group commit).
+ * In between they're made visible to searchers through near real time readers: searchers are shared by
+ * the queries through a {@link SearcherManager} which a background thread refreshes every
+ * {@code refreshInterval} milliseconds.
+ * Searchers must be given back through {@link #releaseSearcher(IndexSearcher)} once done with them.
+ * Queries fetching their results page by page get the same searcher for each page through
+ * {@link #recordSearcher(IndexSearcher)} and {@link #acquireSearcher(long)}, without holding it in between:
+ * replaced searchers are kept for {@code searcherLease} seconds.
+ */
+public class NLSIndexNode implements NLSIndexWriter {
+
+    private final Logger log = LoggerFactory.getLogger(getClass());
+
+    private final Directory directory;
+    private final boolean readOnly;
+    private final long commitInterval;
+    private final int maxUncommittedDocs;
+    private final ScheduledExecutorService executor;
+    private final SearcherLifetimeManager lifetimes = new SearcherLifetimeManager();
+    private final AtomicInteger uncommittedDocs = new AtomicInteger();
+    private final PendingTexts pendingTexts = new PendingTexts();
+
+    private IndexWriter writer;
+    private SearcherManager searcherManager;
+    private NLSQueryClassifier classifier;
+
+    /**
+     * opens a read only index, stored in Oak
+     */
+    public NLSIndexNode(OakDirectory directory, long refreshInterval, long searcherLease) {
+        this(directory, true, refreshInterval, 0, 0, searcherLease);
+    }
+
+    public NLSIndexNode(Directory directory, long refreshInterval, long commitInterval, int maxUncommittedDocs,
+                        long searcherLease) {
+        this(directory, false, refreshInterval, commitInterval, maxUncommittedDocs, searcherLease);
+    }
+
+    private NLSIndexNode(Directory directory, boolean readOnly, long refreshInterval, long commitInterval,
+                         int maxUncommittedDocs, final long searcherLease) {
+        this.directory = directory;
+        this.readOnly = readOnly;
+        this.commitInterval = commitInterval;
+        this.maxUncommittedDocs = maxUncommittedDocs;
+        this.executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "nls-index-maintenance");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        executor.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                SearcherManager manager = getSearcherManager();
+                if (manager != null) {
+                    try {
+                        manager.maybeRefresh();
+                        lifetimes.prune(new SearcherLifetimeManager.PruneByAge(searcherLease));
+                    } catch (IOException e) {
+                        log.error("could not refresh index searcher", e);
+                    }
+                }
+            }
+        }, refreshInterval, refreshInterval, TimeUnit.MILLISECONDS);
+        if (commitInterval > 0 && !readOnly) {
+            executor.scheduleWithFixedDelay(new Runnable() {
+                @Override
+                public void run() {
+                    commit();
+                }
+            }, commitInterval, commitInterval, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    public Directory getDirectory() {
+        return directory;
+    }
+
+    /**
+     * @return the classifier of the queries run against this index
+     */
+    public synchronized NLSQueryClassifier getClassifier() {
+        if (classifier == null) {
+            classifier = new NLSQueryClassifier(this);
+        }
+        return classifier;
+    }
+
+    /**
+     * moves an index stored in Oak to the given state of its definition
+     */
+    public void updateDefinition(NodeState definition) {
+        if (readOnly && ((OakDirectory) directory).setState(definition.getChildNode(OakDirectory.DATA))) {
+            refresh();
+        }
+    }
+
+    /**
+     * @return the writer of this index, opened on first use, {@code null} for read only indexes
+     */
+    public synchronized IndexWriter getWriter() {
+        if (writer == null && !readOnly) {
+            try {
+                writer = new IndexWriter(directory, new IndexWriterConfig(Lucene.VERSION, new StandardAnalyzer()));
+            } catch (IOException e) {
+                log.error("could not create index writer", e);
+            }
+        }
+        return writer;
+    }
+
+    @Override
+    public void updateDocument(Term term, Document document) throws IOException {
+        getWriter().updateDocument(term, document);
+        uncommittedDocs.incrementAndGet();
+    }
+
+    @Override
+    public void deleteDocuments(Term... terms) throws IOException {
+        getWriter().deleteDocuments(terms);
+        uncommittedDocs.addAndGet(terms.length);
+    }
+
+    @Override
+    public void deleteAll() throws IOException {
+        getWriter().deleteAll();
+        uncommittedDocs.incrementAndGet();
+    }
+
+    @Override
+    public PendingTexts getPendingTexts() {
+        return readOnly ? null : pendingTexts;
+    }
+
+    /**
+     * to be called at the end of each Oak commit: commits to Lucene, unless it's left to the group commit,
+     * and makes the changes visible to searchers
+     */
+    @Override
+    public void afterOakCommit() {
+        if (commitInterval <= 0 || uncommittedDocs.get() >= maxUncommittedDocs) {
+            commit();
+        }
+        refresh();
+    }
+
+    /**
+     * commits the pending changes to Lucene
+     */
+    public void commit() {
+        IndexWriter indexWriter = getWriter();
+        if (indexWriter != null) {
+            synchronized (indexWriter) {
+                try {
+                    int pending = uncommittedDocs.getAndSet(0);
+                    if (indexWriter.hasUncommittedChanges()) {
+                        indexWriter.commit();
+                        log.debug("committed {} docs", pending);
+                    }
+                } catch (IOException e) {
+                    log.error("could not commit index", e);
+                }
+            }
+        }
+    }
+
+    /**
+     * @return the current searcher, {@code null} if the index can't be opened
+     */
+    public IndexSearcher acquireSearcher() {
+        SearcherManager manager = getSearcherManager();
+        if (manager != null) {
+            try {
+                return manager.acquire();
+            } catch (Exception e) {
+                log.error("could not acquire index searcher", e);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * keeps the given acquired searcher available for {@link #acquireSearcher(long)}
+     *
+     * @return the version of the searcher
+     */
+    public long recordSearcher(IndexSearcher searcher) throws IOException {
+        return lifetimes.record(searcher);
+    }
+
+    /**
+     * @param version the version of a searcher, returned by {@link #recordSearcher(IndexSearcher)}
+     * @return the searcher of the given version, {@code null} if it has been replaced for too long
+     */
+    public IndexSearcher acquireSearcher(long version) {
+        return lifetimes.acquire(version);
+    }
+
+    public void releaseSearcher(IndexSearcher searcher) {
+        SearcherManager manager = getSearcherManager();
+        if (manager != null && searcher != null) {
+            try {
+                manager.release(searcher);
+            } catch (IOException e) {
+                log.error("could not release index searcher", e);
+            }
+        }
+    }
+
+    /**
+     * makes the latest changes, even uncommitted ones, visible to the searchers acquired from now on
+     */
+    public void refresh() {
+        SearcherManager manager = getSearcherManager();
+        if (manager != null) {
+            try {
+                manager.maybeRefreshBlocking();
+            } catch (IOException e) {
+                log.error("could not refresh index searcher", e);
+            }
+        }
+    }
+
+    public synchronized void close() {
+        executor.shutdown();
+        if (classifier != null) {
+            classifier.close();
+            classifier = null;
+        }
+        try {
+            lifetimes.close();
+            if (searcherManager != null) {
+                searcherManager.close();
+                searcherManager = null;
+            }
+            if (writer != null) {
+                writer.close();
+                writer = null;
+            }
+        } catch (IOException e) {
+            log.error("could not close index", e);
+        }
+    }
+
+    private synchronized SearcherManager getSearcherManager() {
+        if (searcherManager == null && readOnly) {
+            try {
+                searcherManager = new SearcherManager(directory, null);
+            } catch (IOException e) {
+                // nothing stored yet
+                log.debug("could not open searcher manager", e);
+            }
+        } else if (searcherManager == null) {
+            IndexWriter indexWriter = getWriter();
+            if (indexWriter != null) {
+                try {
+                    searcherManager = new SearcherManager(indexWriter, true, null);
+                } catch (IOException e) {
+                    log.error("could not open searcher manager", e);
+                }
+            }
+        }
+        return searcherManager;
+    }
+}
@@ -0,0 +1,55 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.tteofili.apacheconeu14.oak.search.nls;
+
+import java.io.IOException;
+
+import com.github.tteofili.apacheconeu14.oak.search.util.PendingTexts;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.index.Term;
+
+/**
+ * Where {@link NLSIndexEditor} writes the docs of the changed nodes
+ */
+public interface NLSIndexWriter {
+
+    /**
+     * adds the document, replacing the ones matching the term
+     */
+    void updateDocument(Term term, Document document) throws IOException;
+
+    /**
+     * deletes the documents matching any of the terms
+     */
+    void deleteDocuments(Term... terms) throws IOException;
+
+    /**
+     * deletes all the documents, before they're written again by a reindex
+     */
+    void deleteAll() throws IOException;
+
+    /**
+     * to be called at the end of each Oak commit
+     */
+    void afterOakCommit();
+
+    /**
+     * @return the nodes to be indexed again once the text of their binaries is extracted, {@code null} if the
+     * writer can't be written to after the Oak commit, in which case the text is indexed the next time the node is
+     */
+    PendingTexts getPendingTexts();
+}
@@ -0,0 +1,280 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.tteofili.apacheconeu14.oak.search.nls;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.apache.lucene.analysis.standard.StandardAnalyzer;
+import org.apache.lucene.classification.ClassificationResult;
+import org.apache.lucene.classification.KNearestNeighborClassifier;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.document.StringField;
+import org.apache.lucene.document.TextField;
+import org.apache.lucene.index.AtomicReader;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.IndexableField;
+import org.apache.lucene.index.MultiFields;
+import org.apache.lucene.index.SlowCompositeReaderWrapper;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.store.RAMDirectory;
+import org.apache.lucene.util.Bits;
+import org.apache.lucene.util.BytesRef;
+import org.elasticsearch.common.lucene.Lucene;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Classifies NLS queries by the primary type of the nodes having a similar title.
+ * The classifier is trained in the background, on an in memory copy of the titles and primary types of the
+ * index, so that the trained model doesn't keep old index files around; it's retrained only once the index has
+ * changed by more than {@link #RETRAIN_THRESHOLD} of its docs, queries meanwhile keep using the last trained model.
+ */
+public class NLSQueryClassifier {
+
+    /**
+     * fraction of changed docs which triggers a new training
+     */
+    public static final double RETRAIN_THRESHOLD = 0.05;
+
+    private static final int MIN_CHANGED_DOCS = 10;
+
+    private static final String TEXT_FIELD = "jcr:title";
+
+    private static final String CLASS_FIELD = "jcr:primaryType";
+
+    private static final Set<String> TRAINING_FIELDS = new HashSet<String>(Arrays.asList(TEXT_FIELD, CLASS_FIELD));
+
+    private final Logger log = LoggerFactory.getLogger(getClass());
+
+    private final NLSIndexNode indexNode;
+    private final ExecutorService trainer;
+    private final AtomicBoolean training = new AtomicBoolean();
+
+    private volatile Model model;
+    private boolean closed;
+
+    public NLSQueryClassifier(NLSIndexNode indexNode) {
+        this.indexNode = indexNode;
+        this.trainer = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "nls-classifier-training");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * @param text     the query to classify
+     * @param searcher the searcher the query runs on, used to check whether the model is outdated
+     * @return the class assigned by the last trained model, {@code null} if there's none yet
+     */
+    public ClassificationResult<BytesRef> assignClass(String text, IndexSearcher searcher) {
+        maybeRetrain(searcher.getIndexReader());
+        Model current = model;
+        if (current == null || !current.reader.tryIncRef()) {
+            return null;
+        }
+        try {
+            // classifiers aren't thread safe, each query gets its own, which is cheap on an already built model
+            KNearestNeighborClassifier classifier = new KNearestNeighborClassifier(1);
+            classifier.train(current.atomicReader, TEXT_FIELD, CLASS_FIELD, new StandardAnalyzer());
+            ClassificationResult<BytesRef> result = classifier.assignClass(text);
+            return result != null && result.getAssignedClass() != null ? result : null;
+        } catch (Exception e) {
+            log.debug("could not classify {}", text, e);
+            return null;
+        } finally {
+            release(current);
+        }
+    }
+
+    /**
+     * waits for the training in progress, if any, to complete; starts one if there's no model yet
+     *
+     * @return {@code true} if a trained model is available
+     */
+    public boolean awaitTraining(long timeout, TimeUnit unit) throws InterruptedException {
+        if (model == null) {
+            scheduleTraining();
+        }
+        try {
+            // the trainer runs one task at a time, this one runs once the training is done
+            trainer.submit(new Runnable() {
+                @Override
+                public void run() {
+                }
+            }).get(timeout, unit);
+        } catch (ExecutionException e) {
+            log.error("could not wait for training", e);
+        } catch (TimeoutException e) {
+            return false;
+        }
+        return model != null;
+    }
+
+    public void close() {
+        trainer.shutdown();
+        Model current;
+        synchronized (this) {
+            closed = true;
+            current = model;
+            model = null;
+        }
+        if (current != null) {
+            release(current);
+        }
+    }
+
+    private void maybeRetrain(IndexReader reader) {
+        Model current = model;
+        if (current != null) {
+            if (reader instanceof DirectoryReader && ((DirectoryReader) reader).getVersion() == current.version) {
+                return;
+            }
+            int changedDocs = Math.abs(reader.numDocs() - current.numDocs) + Math.abs(reader.maxDoc() - current.maxDoc);
+            if (changedDocs < Math.max(MIN_CHANGED_DOCS, RETRAIN_THRESHOLD * current.numDocs)) {
+                return;
+            }
+        }
+        scheduleTraining();
+    }
+
+    private void scheduleTraining() {
+        if (training.compareAndSet(false, true)) {
+            trainer.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        train();
+                    } finally {
+                        training.set(false);
+                    }
+                }
+            });
+        }
+    }
+
+    /**
+     * trains a new model on the current state of the index, replacing the previous one
+     */
+    public void train() {
+        IndexSearcher searcher = indexNode.acquireSearcher();
+        if (searcher == null) {
+            return;
+        }
+        long start = System.currentTimeMillis();
+        Model trained;
+        try {
+            trained = copy(searcher.getIndexReader());
+        } catch (IOException e) {
+            log.error("could not train classifier", e);
+            return;
+        } finally {
+            // the index is released as soon as it's copied
+            indexNode.releaseSearcher(searcher);
+        }
+        Model previous;
+        synchronized (this) {
+            if (closed) {
+                previous = trained;
+            } else {
+                previous = model;
+                model = trained;
+            }
+        }
+        if (previous != null) {
+            release(previous);
+        }
+        log.debug("trained classifier on {} docs in {}ms", trained.numDocs, System.currentTimeMillis() - start);
+    }
+
+    /**
+     * @return a model on an in memory copy of the titles and primary types of the docs of the given reader
+     */
+    private Model copy(IndexReader reader) throws IOException {
+        RAMDirectory directory = new RAMDirectory();
+        IndexWriter writer = new IndexWriter(directory, new IndexWriterConfig(Lucene.VERSION, new StandardAnalyzer()));
+        try {
+            Bits liveDocs = MultiFields.getLiveDocs(reader);
+            for (int i = 0; i < reader.maxDoc(); i++) {
+                if (liveDocs != null && !liveDocs.get(i)) {
+                    continue;
+                }
+                Document source = reader.document(i, TRAINING_FIELDS);
+                if (source.getField(TEXT_FIELD) == null || source.getField(CLASS_FIELD) == null) {
+                    continue;
+                }
+                Document doc = new Document();
+                for (IndexableField title : source.getFields(TEXT_FIELD)) {
+                    doc.add(new TextField(TEXT_FIELD, title.stringValue(), Field.Store.NO));
+                }
+                doc.add(new StringField(CLASS_FIELD, source.get(CLASS_FIELD), Field.Store.YES));
+                writer.addDocument(doc);
+            }
+            writer.forceMerge(1);
+        } finally {
+            writer.close();
+        }
+        return new Model(DirectoryReader.open(directory), reader);
+    }
+
+    private void release(Model model) {
+        try {
+            model.reader.decRef();
+        } catch (IOException e) {
+            log.error("could not release classifier reader", e);
+        }
+    }
+
+    private static class Model {
+        /**
+         * the reader of the training copy
+         */
+        private final DirectoryReader reader;
+        private final AtomicReader atomicReader;
+        /**
+         * the state of the index the model has been trained on
+         */
+        private final long version;
+        private final int numDocs;
+        private final int maxDoc;
+
+        private Model(DirectoryReader reader, IndexReader trainedOn) {
+            this.reader = reader;
+            this.atomicReader = SlowCompositeReaderWrapper.wrap(reader);
+            this.version = trainedOn instanceof DirectoryReader ? ((DirectoryReader) trainedOn).getVersion() : -1;
+            this.numDocs = trainedOn.numDocs();
+            this.maxDoc = trainedOn.maxDoc();
+        }
+    }
+}
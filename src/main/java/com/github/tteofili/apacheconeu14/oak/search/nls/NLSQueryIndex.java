@@ -17,44 +17,106 @@
 package com.github.tteofili.apacheconeu14.oak.search.nls;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
 
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
+import org.apache.jackrabbit.oak.api.PropertyState;
 import org.apache.jackrabbit.oak.api.PropertyValue;
+import org.apache.jackrabbit.oak.api.Type;
 import org.apache.jackrabbit.oak.spi.query.Cursor;
 import org.apache.jackrabbit.oak.spi.query.Filter;
 import org.apache.jackrabbit.oak.spi.query.IndexRow;
 import org.apache.jackrabbit.oak.spi.query.PropertyValues;
 import org.apache.jackrabbit.oak.spi.query.QueryIndex;
 import org.apache.jackrabbit.oak.spi.state.NodeState;
-import org.apache.lucene.analysis.standard.StandardAnalyzer;
 import org.apache.lucene.classification.ClassificationResult;
-import org.apache.lucene.classification.Classifier;
-import org.apache.lucene.classification.KNearestNeighborClassifier;
-import org.apache.lucene.index.SlowCompositeReaderWrapper;
+import org.apache.lucene.index.AtomicReaderContext;
+import org.apache.lucene.index.IndexableField;
+import org.apache.lucene.index.ReaderUtil;
+import org.apache.lucene.index.SortedDocValues;
 import org.apache.lucene.index.Term;
+import org.apache.lucene.queries.TermFilter;
 import org.apache.lucene.queries.function.BoostedQuery;
 import org.apache.lucene.queries.function.valuesource.ConstValueSource;
 import org.apache.lucene.search.BooleanClause;
 import org.apache.lucene.search.BooleanQuery;
+import org.apache.lucene.search.CachingWrapperFilter;
+import org.apache.lucene.search.FilteredQuery;
 import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.Query;
 import org.apache.lucene.search.ScoreDoc;
 import org.apache.lucene.search.TermQuery;
 import org.apache.lucene.search.TopDocs;
 import org.apache.lucene.util.BytesRef;
 import org.elasticsearch.client.Client;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import static org.apache.jackrabbit.oak.commons.PathUtils.denotesRoot;
+import static org.apache.jackrabbit.oak.commons.PathUtils.getParentPath;
 
 /**
- * Sample query index for NLS
+ * Sample query index for NLS, subtree path restrictions are applied as cached filters on the
+ * ancestors and depth fields
  */
 public class NLSQueryIndex implements QueryIndex {
 
     private static final String NATIVE_NLS_QUERY = "nls";
 
-    private final NLQuestionsPCFG pcfg;
-    private final Classifier<BytesRef> classifier;
+    private static final Logger log = LoggerFactory.getLogger(NLSQueryIndex.class);
+
+    /**
+     * path filters, cached so that their per segment bitsets are reused across queries
+     */
+    private static final Cache<String, org.apache.lucene.search.Filter> PATH_FILTERS = CacheBuilder.newBuilder().maximumSize(100).build();
+
+    /**
+     * shared so that the questions it caches are reused across queries
+     */
+    private static final NLQuestionsPCFG PCFG = NLQuestionsPCFG.getDefault();
+
+    private final NLSIndexNode indexNode;
+    private final int pageSize;
+    private final int maxPageSize;
 
     public NLSQueryIndex() {
-        pcfg = new NLQuestionsPCFG();
-        classifier = new KNearestNeighborClassifier(1);
+        this(IndexUtils.getIndexNode(), IndexUtils.PAGE_SIZE, IndexUtils.MAX_PAGE_SIZE);
+    }
+
+    /**
+     * @param path       the repository path of the index definition
+     * @param definition the index definition, with optional "pageSize" and "maxPageSize" for paging results
+     */
+    public NLSQueryIndex(String path, NodeState definition) {
+        this(IndexUtils.getIndexNode(path, definition), getInt(definition, "pageSize", IndexUtils.PAGE_SIZE),
+                getInt(definition, "maxPageSize", IndexUtils.MAX_PAGE_SIZE));
+        indexNode.updateDefinition(definition);
+    }
+
+    public NLSQueryIndex(NLSIndexNode indexNode, int pageSize, int maxPageSize) {
+        this.indexNode = indexNode;
+        this.pageSize = Math.max(1, pageSize);
+        this.maxPageSize = Math.max(this.pageSize, maxPageSize);
+    }
+
+    private static int getInt(NodeState definition, String name, int defaultValue) {
+        PropertyState property = definition.getProperty(name);
+        return property != null ? property.getValue(Type.LONG).intValue() : defaultValue;
+    }
+
+    /**
+     * moves the index to the given state of its definition, for indexes stored in Oak
+     */
+    public void updateDefinition(NodeState definition) {
+        indexNode.updateDefinition(definition);
     }
 
     @Override
@@ -73,16 +135,15 @@ public class NLSQueryIndex implements QueryIndex {
         Thread thread = Thread.currentThread();
         ClassLoader loader = thread.getContextClassLoader();
         thread.setContextClassLoader(Client.class.getClassLoader());
+        final IndexSearcher searcher = indexNode.acquireSearcher();
         try {
-            final IndexSearcher searcher = IndexUtils.getSearcher();
-
             if (searcher != null) {
 
                 Filter.PropertyRestriction nativeQueryRestriction = filter.getPropertyRestriction(NATIVE_NLS_QUERY);
                 String nativeQueryString = String.valueOf(nativeQueryRestriction.first.getValue(nativeQueryRestriction.first.getType()));
 
                 // build the parse tree of the query and filter the uninteresting part (e.g. "who is the admin" -> "admin")
-                String purgedQuery = pcfg.filterQuestion(nativeQueryString);
+                String purgedQuery = PCFG.filterQuestion(nativeQueryString);
 
                 BooleanQuery booleanClauses = new BooleanQuery();
 
@@ -93,59 +154,113 @@ public class NLSQueryIndex implements QueryIndex {
                     booleanClauses.add(new BooleanClause(new TermQuery(new Term("text", purgedQuery)), BooleanClause.Occur.SHOULD));
                 }
 
-                // infer "class" of the query and boost based on that
+                // infer "class" of the query (with the last trained model) and boost based on that
                 try {
-                    initializeClassifier(searcher);
-                    ClassificationResult<BytesRef> result = null;
-                    try {
-                        result = classifier.assignClass(nativeQueryString);
-                    } catch (Exception e) {
-                        // do nothing
-                    }
+                    ClassificationResult<BytesRef> result = indexNode.getClassifier().assignClass(nativeQueryString, searcher);
                     if (result != null) {
                         booleanClauses.add(new BooleanClause(new BoostedQuery(new TermQuery(new Term("jcr:primaryType", result.getAssignedClass())),
                                 new ConstValueSource(2.0f)), BooleanClause.Occur.SHOULD));
                     }
 
-                    final TopDocs topDocs = searcher.search(booleanClauses, 100);
-                    final ScoreDoc[] scoreDocs = topDocs.scoreDocs;
+                    Query query = booleanClauses;
+                    org.apache.lucene.search.Filter pathFilter = getPathFilter(filter);
+                    if (pathFilter != null) {
+                        query = new FilteredQuery(booleanClauses, pathFilter);
+                    }
+
+                    final Query pagedQuery = query;
+                    final TopDocs firstPage = searcher.search(query, pageSize);
+                    final String[] firstPaths = readPaths(searcher, firstPage.scoreDocs);
+                    // later pages are fetched from the same searcher, which isn't held in between
+                    final long version = indexNode.recordSearcher(searcher);
 
                     return new Cursor() {
+                        // results are paged with searchAfter, pages grow up to maxPageSize
+                        private ScoreDoc[] scoreDocs = firstPage.scoreDocs;
+                        private String[] paths = firstPaths;
                         private int index = 0;
+                        private int currentPageSize = pageSize;
+                        private boolean lastPage = firstPage.scoreDocs.length < pageSize;
 
                         @Override
                         public IndexRow next() {
 
                             final ScoreDoc scoreDoc = scoreDocs[index];
+                            final String path = paths[index];
 
                             index++;
                             return new IndexRow() {
+                                // fields are loaded at most once per row, and only when asked for
+                                private final Map<String, PropertyValue> values = new HashMap<String, PropertyValue>();
+
                                 @Override
                                 public String getPath() {
-                                    try {
-                                        return searcher.doc(scoreDoc.doc).get("path");
-                                    } catch (IOException e) {
-                                        return null;
-                                    }
+                                    return path;
                                 }
 
                                 @Override
                                 public PropertyValue getValue(String s) {
-                                    try {
-                                        if ("jcr:score".equals(s)) {
-                                            PropertyValues.newString(String.valueOf(scoreDoc.score));
-                                        }
-                                        return PropertyValues.newString(searcher.doc(scoreDoc.doc).get(s));
-                                    } catch (IOException e) {
-                                        return null;
+                                    if ("jcr:score".equals(s)) {
+                                        return PropertyValues.newDouble((double) scoreDoc.score);
+                                    }
+                                    if (!values.containsKey(s)) {
+                                        values.put(s, readValue(scoreDoc.doc, s));
                                     }
+                                    return values.get(s);
                                 }
                             };
                         }
 
+                        private PropertyValue readValue(int doc, String name) {
+                            IndexSearcher pageSearcher = indexNode.acquireSearcher(version);
+                            if (pageSearcher == null) {
+                                log.debug("searcher of the query expired, can't read {} of doc {}", name, doc);
+                                return null;
+                            }
+                            try {
+                                List<String> fieldValues = new ArrayList<String>();
+                                for (IndexableField field : pageSearcher.doc(doc, Collections.singleton(name)).getFields(name)) {
+                                    fieldValues.add(field.stringValue() != null ? field.stringValue() : String.valueOf(field.numericValue()));
+                                }
+                                if (fieldValues.isEmpty()) {
+                                    return null;
+                                }
+                                return fieldValues.size() == 1 ? PropertyValues.newString(fieldValues.get(0)) : PropertyValues.newString(fieldValues);
+                            } catch (IOException e) {
+                                log.error("could not read {} of doc {}", name, doc, e);
+                                return null;
+                            } finally {
+                                indexNode.releaseSearcher(pageSearcher);
+                            }
+                        }
+
                         @Override
                         public boolean hasNext() {
-                            return index < scoreDocs.length;
+                            return index < scoreDocs.length || (!lastPage && nextPage());
+                        }
+
+                        private boolean nextPage() {
+                            ScoreDoc after = scoreDocs[scoreDocs.length - 1];
+                            currentPageSize = Math.min(currentPageSize * 2, maxPageSize);
+                            scoreDocs = new ScoreDoc[0];
+                            IndexSearcher pageSearcher = indexNode.acquireSearcher(version);
+                            if (pageSearcher == null) {
+                                // results of another searcher would skip or repeat some of the docs
+                                log.warn("searcher of the query expired, dropping the results after doc {}", after.doc);
+                            } else {
+                                try {
+                                    scoreDocs = pageSearcher.searchAfter(after, pagedQuery, currentPageSize).scoreDocs;
+                                    paths = readPaths(pageSearcher, scoreDocs);
+                                } catch (IOException e) {
+                                    log.error("could not fetch results after doc {}", after.doc, e);
+                                    scoreDocs = new ScoreDoc[0];
+                                } finally {
+                                    indexNode.releaseSearcher(pageSearcher);
+                                }
+                            }
+                            index = 0;
+                            lastPage = scoreDocs.length < currentPageSize;
+                            return scoreDocs.length > 0;
                         }
 
                         @Override
@@ -158,16 +273,66 @@ public class NLSQueryIndex implements QueryIndex {
                 }
             }
         } finally {
+            // a cursor abandoned before its end holds no searcher
+            indexNode.releaseSearcher(searcher);
             thread.setContextClassLoader(loader);
         }
         return null;
     }
 
-    private void initializeClassifier(IndexSearcher searcher) {
+    /**
+     * @return the paths of the given docs, read from the doc values of their segments rather than loading the docs
+     */
+    private String[] readPaths(IndexSearcher searcher, ScoreDoc[] scoreDocs) throws IOException {
+        List<AtomicReaderContext> leaves = searcher.getIndexReader().leaves();
+        SortedDocValues[] docValues = new SortedDocValues[leaves.size()];
+        String[] paths = new String[scoreDocs.length];
+        for (int i = 0; i < scoreDocs.length; i++) {
+            int doc = scoreDocs[i].doc;
+            int leaf = ReaderUtil.subIndex(doc, leaves);
+            if (docValues[leaf] == null) {
+                docValues[leaf] = leaves.get(leaf).reader().getSortedDocValues(IndexUtils.PATH);
+            }
+            if (docValues[leaf] != null) {
+                paths[i] = docValues[leaf].get(doc - leaves.get(leaf).docBase).utf8ToString();
+            } else {
+                // indexed before path doc values were added
+                paths[i] = searcher.doc(doc, Collections.singleton(IndexUtils.PATH)).get(IndexUtils.PATH);
+            }
+        }
+        return paths;
+    }
+
+    /**
+     * @return a filter for the path restriction, {@code null} if there's none
+     */
+    private static org.apache.lucene.search.Filter getPathFilter(Filter filter) {
+        final String path = filter.getPath();
+        final Filter.PathRestriction restriction = filter.getPathRestriction();
+        if (restriction == Filter.PathRestriction.NO_RESTRICTION
+                || (restriction == Filter.PathRestriction.ALL_CHILDREN && denotesRoot(path))) {
+            return null;
+        }
         try {
-            classifier.train(SlowCompositeReaderWrapper.wrap(searcher.getIndexReader()), "jcr:title", "jcr:primaryType", new StandardAnalyzer());
-        } catch (IOException e) {
-            // error in training
+            return PATH_FILTERS.get(restriction + ":" + path, new Callable<org.apache.lucene.search.Filter>() {
+                @Override
+                public org.apache.lucene.search.Filter call() throws Exception {
+                    switch (restriction) {
+                        case EXACT:
+                            return new CachingWrapperFilter(new TermFilter(new Term(IndexUtils.PATH, path)));
+                        case PARENT:
+                            // the root has no parent, nothing matches the empty path
+                            return new CachingWrapperFilter(new TermFilter(new Term(IndexUtils.PATH, denotesRoot(path) ? "" : getParentPath(path))));
+                        case DIRECT_CHILDREN:
+                            return new CachingWrapperFilter(new TermFilter(new Term(IndexUtils.PARENT, path)));
+                        default:
+                            return new CachingWrapperFilter(new TermFilter(new Term(IndexUtils.ANCESTORS, path)));
+                    }
+                }
+            });
+        } catch (ExecutionException e) {
+            log.error("could not create path filter for {}", path, e);
+            return null;
         }
     }
 
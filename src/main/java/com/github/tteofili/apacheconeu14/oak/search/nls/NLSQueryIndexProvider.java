@@ -17,45 +17,40 @@
 package com.github.tteofili.apacheconeu14.oak.search.nls;
 
 import javax.annotation.Nonnull;
-import java.util.ArrayList;
 import java.util.List;
 
+import com.github.tteofili.apacheconeu14.oak.search.util.QueryIndexRegistry;
 import org.apache.felix.scr.annotations.Component;
 import org.apache.felix.scr.annotations.Service;
-import org.apache.jackrabbit.oak.api.PropertyState;
-import org.apache.jackrabbit.oak.api.Type;
 import org.apache.jackrabbit.oak.spi.query.QueryIndex;
 import org.apache.jackrabbit.oak.spi.query.QueryIndexProvider;
-import org.apache.jackrabbit.oak.spi.state.ChildNodeEntry;
 import org.apache.jackrabbit.oak.spi.state.NodeState;
 
-import static org.apache.jackrabbit.oak.plugins.index.IndexConstants.INDEX_DEFINITIONS_NAME;
-import static org.apache.jackrabbit.oak.plugins.index.IndexConstants.TYPE_PROPERTY_NAME;
-
 /**
  * provider for {@link com.github.tteofili.apacheconeu14.oak.search.nls.NLSQueryIndex}
  */
 @Component
 @Service(value = QueryIndexProvider.class)
 public class NLSQueryIndexProvider implements QueryIndexProvider {
+
+    /**
+     * the NLS query indexes, rebuilt only when their definition changes
+     */
+    private final QueryIndexRegistry registry = new QueryIndexRegistry("nls") {
+        @Override
+        protected QueryIndex createIndex(String path, NodeState definition) throws Exception {
+            return new NLSQueryIndex(path, definition);
+        }
+
+        @Override
+        protected void updateIndex(QueryIndex index, NodeState definition) {
+            ((NLSQueryIndex) index).updateDefinition(definition);
+        }
+    };
+
     @Nonnull
     @Override
     public List<? extends QueryIndex> getQueryIndexes(NodeState nodeState) {
-        List<QueryIndex> tempIndexes = new ArrayList<QueryIndex>();
-        NodeState definitions = nodeState.getChildNode(INDEX_DEFINITIONS_NAME);
-        for (ChildNodeEntry entry : definitions.getChildNodeEntries()) {
-            NodeState definition = entry.getNodeState();
-            PropertyState type = definition.getProperty(TYPE_PROPERTY_NAME);
-            if (type != null
-                    && "nls".equals(type.getValue(Type.STRING))) {
-                try {
-                    tempIndexes.add(new NLSQueryIndex());
-                } catch (Exception e) {
-                    // do nothing
-                }
-
-            }
-        }
-        return tempIndexes;
+        return registry.getQueryIndexes(nodeState);
     }
 }
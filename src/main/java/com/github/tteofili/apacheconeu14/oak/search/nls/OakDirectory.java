@@ -0,0 +1,387 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.tteofili.apacheconeu14.oak.search.nls;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+
+import org.apache.jackrabbit.oak.api.Blob;
+import org.apache.jackrabbit.oak.api.PropertyState;
+import org.apache.jackrabbit.oak.api.Type;
+import org.apache.jackrabbit.oak.spi.state.NodeBuilder;
+import org.apache.jackrabbit.oak.spi.state.NodeState;
+import org.apache.lucene.codecs.CodecUtil;
+import org.apache.lucene.index.CorruptIndexException;
+import org.apache.lucene.index.IndexFileNames;
+import org.apache.lucene.store.BaseDirectory;
+import org.apache.lucene.store.FSDirectory;
+import org.apache.lucene.store.IOContext;
+import org.apache.lucene.store.IndexInput;
+import org.apache.lucene.store.IndexOutput;
+import org.apache.lucene.store.NoLockFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A Lucene {@link org.apache.lucene.store.Directory} stored in Oak, below the {@link #DATA} node of the index
+ * definition: each file is a child node with its content split in {@link #CHUNK_SIZE} binaries, so that all the
+ * cluster nodes share the same index.
+ * Files are read from (and written to) a local directory, which acts as a copy-on-read cache: as Lucene files
+ * are never modified once written, only the files of new segments have to be copied when the index changes
+ * (local copies are checked against the checksum stored with each file).
+ * <p/>
+ * A directory opened on a {@link NodeBuilder} is written within an Oak commit, files written locally are
+ * stored in Oak when the directory is closed, along with a new {@link #PROP_VERSION} of the whole directory.
+ * A directory opened on a {@link NodeState} is read only, it can be moved to newer states of the index through
+ * {@link #setState(NodeState)}.
+ * Concurrent writers are excluded by Oak commits, so no Lucene lock is used.
+ */
+public class OakDirectory extends BaseDirectory {
+
+    /**
+     * name of the hidden child of the index definition holding the index files
+     */
+    public static final String DATA = ":data";
+
+    static final String PROP_BLOBS = "jcr:data";
+    static final String PROP_LENGTH = "length";
+    static final String PROP_CHECKSUM = "checksum";
+
+    /**
+     * property of the {@link #DATA} node changed whenever files are stored or deleted, so that states of the
+     * directory can be compared without comparing all of their files
+     */
+    static final String PROP_VERSION = "version";
+
+    static final int CHUNK_SIZE = 1024 * 1024;
+
+    private final Logger log = LoggerFactory.getLogger(getClass());
+
+    private final FSDirectory local;
+    private final NodeBuilder builder;
+    private final Set<String> written = new LinkedHashSet<String>();
+
+    /**
+     * whether files were deleted from Oak, guarded by {@link #written}
+     */
+    private boolean deleted;
+
+    private volatile NodeState state;
+
+    /**
+     * @param builder  the {@link #DATA} node to write to
+     * @param localDir the local directory files are written to before being stored
+     */
+    public OakDirectory(NodeBuilder builder, File localDir) throws IOException {
+        this(builder, null, localDir);
+    }
+
+    /**
+     * @param state    the {@link #DATA} node to read from
+     * @param localDir the local directory files are copied to
+     */
+    public OakDirectory(NodeState state, File localDir) throws IOException {
+        this(null, state, localDir);
+    }
+
+    private OakDirectory(NodeBuilder builder, NodeState state, File localDir) throws IOException {
+        if (!localDir.exists() && !localDir.mkdirs()) {
+            throw new IOException("could not create " + localDir);
+        }
+        this.builder = builder;
+        this.state = state;
+        this.local = FSDirectory.open(localDir);
+        setLockFactory(NoLockFactory.getNoLockFactory());
+    }
+
+    /**
+     * moves a read only directory to a newer state of the index, the local copies of the files which aren't
+     * part of the index anymore (merged away, or dropped by a reindex) are deleted
+     *
+     * @return {@code true} if the state changed
+     */
+    public boolean setState(NodeState state) {
+        if (builder != null) {
+            throw new IllegalStateException("can't change the state of a directory being written");
+        }
+        if (isSameVersion(state, this.state)) {
+            return false;
+        }
+        this.state = state;
+        deleteStaleCopies(state);
+        return true;
+    }
+
+    /**
+     * compares the versions of two states of the directory, states stored before versions were recorded are
+     * compared as a whole
+     */
+    private static boolean isSameVersion(NodeState state, NodeState other) {
+        PropertyState version = state.getProperty(PROP_VERSION);
+        PropertyState otherVersion = other.getProperty(PROP_VERSION);
+        if (version == null && otherVersion == null) {
+            return state.equals(other);
+        }
+        return version != null && version.equals(otherVersion);
+    }
+
+    /**
+     * deletes the local copies of the files which aren't in the given state. Files still held open by readers of
+     * an older state can be deleted where the platform allows it (their content stays available to the open
+     * handles), elsewhere they're left for the next state change
+     */
+    private synchronized void deleteStaleCopies(NodeState state) {
+        String[] names;
+        try {
+            names = local.listAll();
+        } catch (IOException e) {
+            log.warn("could not list the local copies in {}", local.getDirectory(), e);
+            return;
+        }
+        for (String name : names) {
+            if (!state.hasChildNode(name)) {
+                try {
+                    local.deleteFile(name);
+                } catch (IOException e) {
+                    log.debug("could not delete stale local copy {}, still open", name, e);
+                }
+            }
+        }
+    }
+
+    @Override
+    public String[] listAll() throws IOException {
+        ensureOpen();
+        List<String> names = new ArrayList<String>();
+        for (String name : builder != null ? builder.getChildNodeNames() : state.getChildNodeNames()) {
+            names.add(name);
+        }
+        synchronized (written) {
+            for (String name : written) {
+                if (!names.contains(name)) {
+                    names.add(name);
+                }
+            }
+        }
+        return names.toArray(new String[names.size()]);
+    }
+
+    @Override
+    public boolean fileExists(String name) throws IOException {
+        ensureOpen();
+        synchronized (written) {
+            if (written.contains(name)) {
+                return true;
+            }
+        }
+        return builder != null ? builder.hasChildNode(name) : state.hasChildNode(name);
+    }
+
+    @Override
+    public void deleteFile(String name) throws IOException {
+        ensureOpen();
+        if (builder == null) {
+            throw new IOException("read only directory, can't delete " + name);
+        }
+        synchronized (written) {
+            written.remove(name);
+            if (builder.hasChildNode(name)) {
+                builder.getChildNode(name).remove();
+                deleted = true;
+            }
+        }
+        if (local.fileExists(name)) {
+            local.deleteFile(name);
+        }
+    }
+
+    @Override
+    public long fileLength(String name) throws IOException {
+        ensureOpen();
+        synchronized (written) {
+            if (written.contains(name)) {
+                return local.fileLength(name);
+            }
+        }
+        PropertyState length = getFileProperty(name, PROP_LENGTH);
+        if (length == null) {
+            throw new FileNotFoundException(name);
+        }
+        return length.getValue(Type.LONG);
+    }
+
+    @Override
+    public IndexOutput createOutput(String name, IOContext context) throws IOException {
+        ensureOpen();
+        if (builder == null) {
+            throw new IOException("read only directory, can't write " + name);
+        }
+        synchronized (written) {
+            written.add(name);
+        }
+        return local.createOutput(name, context);
+    }
+
+    @Override
+    public void sync(Collection<String> names) throws IOException {
+        // files are stored in Oak on close, within the Oak commit
+    }
+
+    @Override
+    public IndexInput openInput(String name, IOContext context) throws IOException {
+        ensureOpen();
+        synchronized (written) {
+            if (written.contains(name)) {
+                return local.openInput(name, context);
+            }
+        }
+        copyToLocal(name);
+        return local.openInput(name, context);
+    }
+
+    /**
+     * stores the files written locally in Oak and closes the directory
+     */
+    @Override
+    public void close() throws IOException {
+        if (!isOpen) {
+            return;
+        }
+        try {
+            if (builder != null) {
+                synchronized (written) {
+                    boolean changed = deleted;
+                    for (String name : written) {
+                        // segments.gen is only a hint, readers find the latest segments_N anyway
+                        if (!IndexFileNames.SEGMENTS_GEN.equals(name) && local.fileExists(name)) {
+                            store(name);
+                            changed = true;
+                        }
+                    }
+                    if (changed) {
+                        builder.setProperty(PROP_VERSION, UUID.randomUUID().toString());
+                    }
+                    written.clear();
+                    deleted = false;
+                }
+            }
+        } finally {
+            isOpen = false;
+            local.close();
+        }
+    }
+
+    private PropertyState getFileProperty(String name, String property) {
+        if (builder != null) {
+            return builder.hasChildNode(name) ? builder.getChildNode(name).getProperty(property) : null;
+        }
+        return state.getChildNode(name).getProperty(property);
+    }
+
+    /**
+     * copies a file stored in Oak to the local directory, unless an identical copy is already there: files of
+     * different indexes (or of a reindexed one) may have the same name and length, so their checksums must match
+     */
+    private synchronized void copyToLocal(String name) throws IOException {
+        PropertyState length = getFileProperty(name, PROP_LENGTH);
+        PropertyState blobs = getFileProperty(name, PROP_BLOBS);
+        if (length == null || blobs == null) {
+            throw new FileNotFoundException(name);
+        }
+        PropertyState checksum = getFileProperty(name, PROP_CHECKSUM);
+        if (checksum != null && local.fileExists(name) && local.fileLength(name) == length.getValue(Type.LONG)
+                && checksum.getValue(Type.LONG).equals(getChecksum(name))) {
+            return;
+        }
+        long start = System.currentTimeMillis();
+        byte[] buffer = new byte[8192];
+        IndexOutput output = local.createOutput(name, IOContext.DEFAULT);
+        try {
+            for (Blob blob : blobs.getValue(Type.BINARIES)) {
+                InputStream stream = blob.getNewStream();
+                try {
+                    int read;
+                    while ((read = stream.read(buffer)) != -1) {
+                        output.writeBytes(buffer, 0, read);
+                    }
+                } finally {
+                    stream.close();
+                }
+            }
+        } finally {
+            output.close();
+        }
+        log.debug("copied {} ({} bytes) in {}ms", name, length.getValue(Type.LONG), System.currentTimeMillis() - start);
+    }
+
+    /**
+     * @return the checksum in the footer of a local file, {@code null} if it has none
+     */
+    private Long getChecksum(String name) throws IOException {
+        IndexInput input = local.openInput(name, IOContext.READONCE);
+        try {
+            return input.length() >= CodecUtil.footerLength() ? CodecUtil.retrieveChecksum(input) : null;
+        } catch (CorruptIndexException e) {
+            return null;
+        } finally {
+            input.close();
+        }
+    }
+
+    /**
+     * stores a file written locally in Oak, as a list of chunks
+     */
+    private void store(String name) throws IOException {
+        Long checksum = getChecksum(name);
+        IndexInput input = local.openInput(name, IOContext.READONCE);
+        try {
+            long length = input.length();
+            List<Blob> blobs = new ArrayList<Blob>();
+            byte[] chunk = new byte[(int) Math.min(CHUNK_SIZE, length)];
+            for (long stored = 0; stored < length; ) {
+                int size = (int) Math.min(CHUNK_SIZE, length - stored);
+                input.readBytes(chunk, 0, size);
+                blobs.add(builder.createBlob(new ByteArrayInputStream(chunk, 0, size)));
+                stored += size;
+            }
+            NodeBuilder file = builder.child(name);
+            file.setProperty(PROP_BLOBS, blobs, Type.BINARIES);
+            file.setProperty(PROP_LENGTH, length);
+            if (checksum != null) {
+                file.setProperty(PROP_CHECKSUM, checksum);
+            } else {
+                file.removeProperty(PROP_CHECKSUM);
+            }
+        } finally {
+            input.close();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "OakDirectory(" + local.getDirectory() + ")";
+    }
+}
@@ -0,0 +1,102 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.tteofili.apacheconeu14.oak.search.nls;
+
+import java.io.File;
+import java.io.IOException;
+
+import com.github.tteofili.apacheconeu14.oak.search.util.PendingTexts;
+import org.apache.jackrabbit.oak.spi.state.NodeBuilder;
+import org.apache.lucene.analysis.standard.StandardAnalyzer;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.SerialMergeScheduler;
+import org.apache.lucene.index.Term;
+import org.elasticsearch.common.lucene.Lucene;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Writes an NLS index stored in Oak, through an {@link OakDirectory} on the index definition being committed.
+ * The {@link IndexWriter} is opened on the first change and committed (and closed) with the Oak commit.
+ */
+public class OakIndexWriter implements NLSIndexWriter {
+
+    private final Logger log = LoggerFactory.getLogger(getClass());
+
+    private final NodeBuilder data;
+    private final File localDir;
+
+    private OakDirectory directory;
+    private IndexWriter writer;
+
+    /**
+     * @param data     the {@link OakDirectory#DATA} node of the index definition
+     * @param localDir the local directory to write files to before storing them
+     */
+    public OakIndexWriter(NodeBuilder data, File localDir) {
+        this.data = data;
+        this.localDir = localDir;
+    }
+
+    @Override
+    public void updateDocument(Term term, Document document) throws IOException {
+        getWriter().updateDocument(term, document);
+    }
+
+    @Override
+    public void deleteDocuments(Term... terms) throws IOException {
+        getWriter().deleteDocuments(terms);
+    }
+
+    @Override
+    public void deleteAll() throws IOException {
+        getWriter().deleteAll();
+    }
+
+    private IndexWriter getWriter() throws IOException {
+        if (writer == null) {
+            directory = new OakDirectory(data, localDir);
+            IndexWriterConfig config = new IndexWriterConfig(Lucene.VERSION, new StandardAnalyzer());
+            // merges must run in the committing thread, as node builders aren't thread safe
+            config.setMergeScheduler(new SerialMergeScheduler());
+            writer = new IndexWriter(directory, config);
+        }
+        return writer;
+    }
+
+    @Override
+    public PendingTexts getPendingTexts() {
+        return null;
+    }
+
+    @Override
+    public void afterOakCommit() {
+        if (writer != null) {
+            try {
+                writer.close();
+                directory.close();
+            } catch (IOException e) {
+                log.error("could not store index in {}", localDir, e);
+            } finally {
+                writer = null;
+                directory = null;
+            }
+        }
+    }
+}
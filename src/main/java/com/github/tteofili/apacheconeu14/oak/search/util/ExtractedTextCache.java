@@ -0,0 +1,106 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.tteofili.apacheconeu14.oak.search.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.Charset;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.Weigher;
+import com.google.common.hash.Hashing;
+import com.google.common.io.Files;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Cache of the text extracted from binaries, keyed by their content identity.
+ * Texts are kept in a LRU in-memory cache bounded by their total length and persisted as files in a directory,
+ * so that they survive restarts. An empty text means the binary has no (extractable) text.
+ */
+public class ExtractedTextCache {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private final Logger log = LoggerFactory.getLogger(getClass());
+
+    private final Cache<String, String> memory;
+
+    private final File directory;
+
+    /**
+     * @param directory the directory where the texts are persisted, {@code null} for in-memory only caching
+     * @param maxChars  the maximum number of chars kept in memory
+     */
+    public ExtractedTextCache(File directory, long maxChars) {
+        this.directory = directory;
+        this.memory = CacheBuilder.newBuilder()
+                .maximumWeight(maxChars)
+                .weigher(new Weigher<String, String>() {
+                    @Override
+                    public int weigh(String key, String value) {
+                        return 1 + value.length();
+                    }
+                })
+                .build();
+        if (directory != null && !directory.isDirectory() && !directory.mkdirs()) {
+            log.warn("could not create the extracted text cache directory {}", directory);
+        }
+    }
+
+    /**
+     * @return the text extracted from the binary, {@code null} if it isn't cached
+     */
+    public String get(String contentIdentity) {
+        String text = memory.getIfPresent(contentIdentity);
+        if (text == null && directory != null) {
+            File file = getFile(contentIdentity);
+            if (file.isFile()) {
+                try {
+                    text = Files.toString(file, UTF_8);
+                    memory.put(contentIdentity, text);
+                } catch (IOException e) {
+                    log.warn("could not read the extracted text file {}", file, e);
+                }
+            }
+        }
+        return text;
+    }
+
+    public void put(String contentIdentity, String text) {
+        memory.put(contentIdentity, text);
+        if (directory != null) {
+            File file = getFile(contentIdentity);
+            File tmp = new File(directory, file.getName() + ".tmp." + Thread.currentThread().getId());
+            try {
+                Files.write(text, tmp, UTF_8);
+                if (!tmp.renameTo(file)) {
+                    tmp.delete();
+                }
+            } catch (IOException e) {
+                log.warn("could not write the extracted text file {}", file, e);
+                tmp.delete();
+            }
+        }
+    }
+
+    private File getFile(String contentIdentity) {
+        // content identities aren't necessarily valid file names
+        return new File(directory, Hashing.sha1().hashString(contentIdentity, UTF_8).toString());
+    }
+}
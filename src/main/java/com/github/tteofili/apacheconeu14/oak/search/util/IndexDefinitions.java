@@ -0,0 +1,49 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.tteofili.apacheconeu14.oak.search.util;
+
+import java.util.UUID;
+
+import org.apache.jackrabbit.oak.spi.state.NodeBuilder;
+
+/**
+ * Utility class for index definitions
+ */
+public class IndexDefinitions {
+
+    /**
+     * hidden property holding the unique id of an index definition
+     */
+    public static final String UID = ":uid";
+
+    private IndexDefinitions() {
+    }
+
+    /**
+     * index editors aren't told the path of their definition, this id tells definitions apart instead
+     *
+     * @return the unique id of the definition, recorded in the definition on first use
+     */
+    public static String getUniqueId(NodeBuilder definition) {
+        String id = definition.getString(UID);
+        if (id == null) {
+            id = UUID.randomUUID().toString();
+            definition.setProperty(UID, id);
+        }
+        return id;
+    }
+}
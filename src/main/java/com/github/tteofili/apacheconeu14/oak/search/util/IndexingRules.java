@@ -0,0 +1,183 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.tteofili.apacheconeu14.oak.search.util;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.apache.jackrabbit.oak.api.PropertyState;
+import org.apache.jackrabbit.oak.api.Type;
+import org.apache.jackrabbit.oak.spi.query.Filter;
+import org.apache.jackrabbit.oak.spi.state.NodeState;
+
+import static org.apache.jackrabbit.JcrConstants.JCR_MIXINTYPES;
+import static org.apache.jackrabbit.JcrConstants.JCR_PRIMARYTYPE;
+import static org.apache.jackrabbit.oak.commons.PathUtils.denotesRoot;
+import static org.apache.jackrabbit.oak.commons.PathUtils.getParentPath;
+
+/**
+ * Which nodes an index definition indexes, from its optional properties:
+ * <ul>
+ * <li>"includedPaths": the indexed subtrees, the whole repository by default</li>
+ * <li>"excludedPaths": the subtrees not indexed, /jcr:system and /oak:index by default</li>
+ * <li>"nodeTypes": the primary or mixin types of the indexed nodes (subtypes aren't taken into account),
+ * all nodes by default</li>
+ * <li>"includePropertyNames": the indexed properties, all by default; changes to other properties don't cause
+ * a node to be indexed again</li>
+ * </ul>
+ * Hidden nodes are never indexed.
+ */
+public class IndexingRules {
+
+    public static final String INCLUDED_PATHS = "includedPaths";
+    public static final String EXCLUDED_PATHS = "excludedPaths";
+    public static final String NODE_TYPES = "nodeTypes";
+    public static final String INCLUDE_PROPERTY_NAMES = "includePropertyNames";
+
+    private static final List<String> DEFAULT_INCLUDED_PATHS = Arrays.asList("/");
+    private static final List<String> DEFAULT_EXCLUDED_PATHS = Arrays.asList("/jcr:system", "/oak:index");
+
+    /**
+     * all the nodes and properties
+     */
+    public static final IndexingRules ALL = new IndexingRules(PathFilter.ALL, Collections.<String>emptySet(),
+            Collections.<String>emptySet());
+
+    private final PathFilter pathFilter;
+    private final Set<String> nodeTypes;
+    private final Set<String> propertyNames;
+
+    public IndexingRules(PathFilter pathFilter, Set<String> nodeTypes, Set<String> propertyNames) {
+        this.pathFilter = pathFilter;
+        this.nodeTypes = nodeTypes;
+        this.propertyNames = propertyNames;
+    }
+
+    /**
+     * @param definition an index definition
+     * @return the indexing rules of the definition
+     */
+    public static IndexingRules from(NodeState definition) {
+        PathFilter pathFilter = new PathFilter(getStrings(definition, INCLUDED_PATHS, DEFAULT_INCLUDED_PATHS),
+                getStrings(definition, EXCLUDED_PATHS, DEFAULT_EXCLUDED_PATHS));
+        Set<String> nodeTypes = new HashSet<String>();
+        for (String nodeType : getStrings(definition, NODE_TYPES, null)) {
+            nodeTypes.add(nodeType);
+        }
+        Set<String> propertyNames = new HashSet<String>();
+        for (String propertyName : getStrings(definition, INCLUDE_PROPERTY_NAMES, null)) {
+            propertyNames.add(propertyName);
+        }
+        return new IndexingRules(pathFilter, nodeTypes, propertyNames);
+    }
+
+    public PathFilter getPathFilter() {
+        return pathFilter;
+    }
+
+    /**
+     * @param name the name of a node
+     * @return {@code true} if the node is hidden, hence never indexed nor traversed
+     */
+    public static boolean isHidden(String name) {
+        return name.startsWith(":");
+    }
+
+    /**
+     * @param name the name of a property
+     * @return {@code true} if the property is indexed
+     */
+    public boolean isIndexed(String name) {
+        return propertyNames.isEmpty() || propertyNames.contains(name);
+    }
+
+    /**
+     * @param name the name of a changed property
+     * @return {@code true} if the change may affect the indexed document, that is the property is indexed or it
+     * defines the types of the node
+     */
+    public boolean isRelevant(String name) {
+        return isIndexed(name) || JCR_PRIMARYTYPE.equals(name) || JCR_MIXINTYPES.equals(name);
+    }
+
+    /**
+     * @param filter the filter of a query
+     * @return {@code true} if all the nodes which can match the path and type restrictions of the filter are
+     * indexed, so that an index query doesn't miss any of them
+     */
+    public boolean covers(Filter filter) {
+        String path = filter.getPath();
+        boolean pathsCovered;
+        switch (filter.getPathRestriction()) {
+            case EXACT:
+                pathsCovered = pathFilter.filter(path) == PathFilter.Result.INCLUDE;
+                break;
+            case PARENT:
+                pathsCovered = denotesRoot(path) || pathFilter.filter(getParentPath(path)) == PathFilter.Result.INCLUDE;
+                break;
+            default:
+                // children, descendants or the whole repository
+                pathsCovered = pathFilter.includesSubtree(path);
+        }
+        if (!pathsCovered) {
+            return false;
+        }
+        if (nodeTypes.isEmpty()) {
+            return true;
+        }
+        // subtypes aren't indexed unless listed, so all the types of the filter have to be
+        return !filter.matchesAllTypes() && nodeTypes.containsAll(filter.getPrimaryTypes())
+                && nodeTypes.containsAll(filter.getMixinTypes());
+    }
+
+    /**
+     * @param state a node, below an included path
+     * @return {@code true} if the node has to be indexed according to its types
+     */
+    public boolean isIndexed(NodeState state) {
+        if (nodeTypes.isEmpty()) {
+            return true;
+        }
+        if (!state.exists()) {
+            return false;
+        }
+        PropertyState primaryType = state.getProperty(JCR_PRIMARYTYPE);
+        if (primaryType != null && nodeTypes.contains(primaryType.getValue(Type.NAME))) {
+            return true;
+        }
+        PropertyState mixinTypes = state.getProperty(JCR_MIXINTYPES);
+        if (mixinTypes != null) {
+            for (String mixinType : mixinTypes.getValue(Type.NAMES)) {
+                if (nodeTypes.contains(mixinType)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    private static Iterable<String> getStrings(NodeState definition, String name, List<String> defaultValue) {
+        PropertyState property = definition.getProperty(name);
+        if (property == null) {
+            return defaultValue != null ? defaultValue : Collections.<String>emptyList();
+        }
+        return property.getValue(Type.STRINGS);
+    }
+}
@@ -0,0 +1,167 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.tteofili.apacheconeu14.oak.search.util;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.apache.jackrabbit.oak.commons.PathUtils.elements;
+
+/**
+ * Included and excluded paths compiled to a trie of path elements, where each node already knows whether its
+ * subtree is included, excluded or has to be traversed to reach included descendants.
+ * Editors walk the trie along with the content tree through {@link Node#getChild(String)}, without building
+ * or comparing path strings.
+ */
+public class PathFilter {
+
+    public enum Result {
+        /**
+         * the node is included, and so are its descendants unless explicitly excluded
+         */
+        INCLUDE,
+        /**
+         * the node and all its descendants are excluded
+         */
+        EXCLUDE,
+        /**
+         * the node is excluded, but some of its descendants are included
+         */
+        TRAVERSE
+    }
+
+    private static final Node INCLUDED = new Node(Result.INCLUDE);
+    private static final Node EXCLUDED = new Node(Result.EXCLUDE);
+
+    public static final PathFilter ALL = new PathFilter(Collections.singleton("/"), Collections.<String>emptyList());
+
+    private final Node root;
+
+    /**
+     * @param includedPaths the included subtrees
+     * @param excludedPaths the excluded subtrees, the deepest rule applies when rules are nested
+     */
+    public PathFilter(Iterable<String> includedPaths, Iterable<String> excludedPaths) {
+        Node tree = new Node(null);
+        for (String path : includedPaths) {
+            tree.add(path).rule = Boolean.TRUE;
+        }
+        for (String path : excludedPaths) {
+            tree.add(path).rule = Boolean.FALSE;
+        }
+        tree.compile(false);
+        this.root = tree;
+    }
+
+    public Node getRoot() {
+        return root;
+    }
+
+    /**
+     * @param path an absolute path
+     * @return whether the node at the given path is included
+     */
+    public Result filter(String path) {
+        Node node = root;
+        for (String element : elements(path)) {
+            node = node.getChild(element);
+        }
+        return node.getResult();
+    }
+
+    /**
+     * @param path an absolute path
+     * @return {@code true} if the node at the given path and all its descendants are included
+     */
+    public boolean includesSubtree(String path) {
+        Node node = root;
+        for (String element : elements(path)) {
+            node = node.getChild(element);
+        }
+        return node.subtreeIncluded;
+    }
+
+    /**
+     * A node of the trie
+     */
+    public static class Node {
+        private Map<String, Node> children;
+        private Boolean rule;
+        private Result result;
+        private Node missingChild;
+        private boolean subtreeIncluded;
+
+        private Node(Result result) {
+            this.result = result;
+            this.missingChild = this;
+            this.subtreeIncluded = result == Result.INCLUDE;
+        }
+
+        public Result getResult() {
+            return result;
+        }
+
+        /**
+         * @param name the name of a child node
+         * @return the trie node of the child
+         */
+        public Node getChild(String name) {
+            if (children != null) {
+                Node child = children.get(name);
+                if (child != null) {
+                    return child;
+                }
+            }
+            return missingChild;
+        }
+
+        private Node add(String path) {
+            Node node = this;
+            for (String element : elements(path)) {
+                if (node.children == null) {
+                    node.children = new HashMap<String, Node>();
+                }
+                Node child = node.children.get(element);
+                if (child == null) {
+                    child = new Node(null);
+                    node.children.put(element, child);
+                }
+                node = child;
+            }
+            return node;
+        }
+
+        /**
+         * @return {@code true} if this node or one of its descendants is included
+         */
+        private boolean compile(boolean parentIncluded) {
+            boolean included = rule != null ? rule : parentIncluded;
+            boolean includesBelow = false;
+            subtreeIncluded = included;
+            if (children != null) {
+                for (Node child : children.values()) {
+                    includesBelow |= child.compile(included);
+                    subtreeIncluded &= child.subtreeIncluded;
+                }
+            }
+            result = included ? Result.INCLUDE : includesBelow ? Result.TRAVERSE : Result.EXCLUDE;
+            missingChild = included ? INCLUDED : EXCLUDED;
+            return included || includesBelow;
+        }
+    }
+}
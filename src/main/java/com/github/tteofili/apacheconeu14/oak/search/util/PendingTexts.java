@@ -0,0 +1,150 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.tteofili.apacheconeu14.oak.search.util;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+import org.apache.jackrabbit.oak.api.Blob;
+import org.apache.jackrabbit.oak.spi.state.NodeState;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import static org.apache.jackrabbit.oak.commons.PathUtils.isAncestor;
+
+/**
+ * The nodes of an index which were indexed while the text of some of their binaries was still being extracted
+ * by the {@link TextExtractionService}, so that they're indexed again once the text is ready.
+ * A node is indexed again only if it hasn't been indexed or deleted since, and while holding the lock of this
+ * object, so that a newer state of the node is never overwritten by an older one.
+ */
+public class PendingTexts {
+
+    /**
+     * Indexes a node again, through {@link #indexing(String, NodeState, Indexer)} as any other node
+     */
+    public interface Indexer {
+        void index(String path, NodeState state);
+    }
+
+    private final Logger log = LoggerFactory.getLogger(getClass());
+
+    private final Map<String, Entry> entries = new HashMap<String, Entry>();
+
+    /**
+     * to be called before indexing a node: the returned entry is the callback to be given to the
+     * {@link TextExtractionService}, and has to be passed to {@link #indexed(Entry)} once the doc is written
+     *
+     * @param indexer how to index the node again
+     */
+    public synchronized Entry indexing(String path, NodeState state, Indexer indexer) {
+        entries.remove(path);
+        return new Entry(path, state, indexer);
+    }
+
+    /**
+     * to be called once the doc of the node has been written, the node is tracked if some text was pending
+     */
+    public synchronized void indexed(Entry entry) {
+        if (!entry.pending) {
+            return;
+        }
+        if (entry.extracted) {
+            reindex(entry);
+        } else {
+            entries.put(entry.path, entry);
+        }
+    }
+
+    /**
+     * to be called when the doc of a node is deleted
+     */
+    public synchronized void deleted(String path) {
+        entries.remove(path);
+    }
+
+    /**
+     * to be called when the docs of a subtree are deleted
+     */
+    public synchronized void subtreeDeleted(String path) {
+        Iterator<String> iterator = entries.keySet().iterator();
+        while (iterator.hasNext()) {
+            String pending = iterator.next();
+            if (pending.equals(path) || isAncestor(path, pending)) {
+                iterator.remove();
+            }
+        }
+    }
+
+    /**
+     * @return the number of nodes waiting for the text of their binaries
+     */
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    private void reindex(Entry entry) {
+        try {
+            entry.indexer.index(entry.path, entry.state);
+            log.debug("indexed {} again with the text of its binaries", entry.path);
+        } catch (RuntimeException e) {
+            log.error("could not index {} again with the text of its binaries", entry.path, e);
+        }
+    }
+
+    /**
+     * A node being indexed
+     */
+    public class Entry implements TextExtractionService.Callback {
+        private final String path;
+        private final NodeState state;
+        private final Indexer indexer;
+
+        /**
+         * set by the indexing thread, before {@link #indexed(Entry)}
+         */
+        private boolean pending;
+
+        /**
+         * guarded by the enclosing {@link PendingTexts}
+         */
+        private boolean extracted;
+
+        private Entry(String path, NodeState state, Indexer indexer) {
+            this.path = path;
+            this.state = state;
+            this.indexer = indexer;
+        }
+
+        @Override
+        public void pending(Blob blob) {
+            pending = true;
+        }
+
+        @Override
+        public void extracted(Blob blob) {
+            synchronized (PendingTexts.this) {
+                extracted = true;
+                if (entries.get(path) == this) {
+                    entries.remove(path);
+                    reindex(this);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,65 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.tteofili.apacheconeu14.oak.search.util;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+
+import org.apache.jackrabbit.oak.api.Blob;
+
+/**
+ * Extracts the text of UTF-8 plain text binaries, binaries which aren't valid UTF-8 or contain NUL chars
+ * are not supported
+ */
+public class PlainTextExtractor implements TextExtractor {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    @Override
+    public String extract(Blob blob, int maxLength) throws IOException {
+        CharsetDecoder decoder = UTF_8.newDecoder()
+                .onMalformedInput(CodingErrorAction.REPORT)
+                .onUnmappableCharacter(CodingErrorAction.REPORT);
+        InputStream stream = blob.getNewStream();
+        try {
+            Reader reader = new InputStreamReader(stream, decoder);
+            StringBuilder text = new StringBuilder((int) Math.min(blob.length(), maxLength));
+            char[] buffer = new char[4096];
+            int read;
+            while (text.length() < maxLength
+                    && (read = reader.read(buffer, 0, Math.min(buffer.length, maxLength - text.length()))) != -1) {
+                for (int i = 0; i < read; i++) {
+                    if (buffer[i] == 0) {
+                        return null;
+                    }
+                }
+                text.append(buffer, 0, read);
+            }
+            return text.toString();
+        } catch (CharacterCodingException e) {
+            return null;
+        } finally {
+            stream.close();
+        }
+    }
+}
@@ -0,0 +1,152 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.tteofili.apacheconeu14.oak.search.util;
+
+import javax.jcr.PropertyType;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.apache.jackrabbit.oak.api.PropertyState;
+import org.apache.jackrabbit.oak.api.Type;
+import org.apache.jackrabbit.oak.spi.query.QueryIndex;
+import org.apache.jackrabbit.oak.spi.state.ChildNodeEntry;
+import org.apache.jackrabbit.oak.spi.state.NodeState;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import static org.apache.jackrabbit.oak.plugins.index.IndexConstants.INDEX_DEFINITIONS_NAME;
+import static org.apache.jackrabbit.oak.plugins.index.IndexConstants.REINDEX_PROPERTY_NAME;
+import static org.apache.jackrabbit.oak.plugins.index.IndexConstants.TYPE_PROPERTY_NAME;
+
+/**
+ * Registry of the {@link QueryIndex}es of a given index type, keyed by the path of their definition.
+ * An index is built once and reused by later planning calls until its definition actually changes, as told by
+ * its {@link #fingerprint(NodeState)}: hidden content (e.g. index data stored in Oak) and reindex flags aren't
+ * part of the definition, the current state is just passed to {@link #updateIndex(QueryIndex, NodeState)}, which
+ * is expected to tell cheaply whether anything it depends on changed. The unique id of the definition
+ * ({@link IndexDefinitions#UID}) is part of it, as it tells where its index is.
+ */
+public abstract class QueryIndexRegistry {
+
+    private final Logger log = LoggerFactory.getLogger(getClass());
+
+    private final String type;
+    private final ConcurrentMap<String, Entry> indexes = new ConcurrentHashMap<String, Entry>();
+
+    protected QueryIndexRegistry(String type) {
+        this.type = type;
+    }
+
+    /**
+     * @param root the root node state
+     * @return the query indexes of the definitions of this registry type
+     */
+    public List<QueryIndex> getQueryIndexes(NodeState root) {
+        List<QueryIndex> queryIndexes = new ArrayList<QueryIndex>();
+        Set<String> paths = new HashSet<String>();
+        NodeState definitions = root.getChildNode(INDEX_DEFINITIONS_NAME);
+        for (ChildNodeEntry childNodeEntry : definitions.getChildNodeEntries()) {
+            NodeState definition = childNodeEntry.getNodeState();
+            PropertyState definitionType = definition.getProperty(TYPE_PROPERTY_NAME);
+            if (definitionType == null || !type.equals(definitionType.getValue(Type.STRING))) {
+                continue;
+            }
+            String path = "/" + INDEX_DEFINITIONS_NAME + "/" + childNodeEntry.getName();
+            paths.add(path);
+            Entry entry = indexes.get(path);
+            // only the visible properties are compared, not the hidden content (possibly the whole index)
+            String fingerprint = fingerprint(definition);
+            if (entry == null || !entry.fingerprint.equals(fingerprint)) {
+                try {
+                    entry = new Entry(fingerprint, createIndex(path, definition));
+                    log.debug("built query index for {}", path);
+                } catch (Exception e) {
+                    log.error("could not create query index for {}", path, e);
+                    indexes.remove(path);
+                    continue;
+                }
+                indexes.put(path, entry);
+            } else {
+                updateIndex(entry.index, definition);
+            }
+            queryIndexes.add(entry.index);
+        }
+        indexes.keySet().retainAll(paths);
+        return queryIndexes;
+    }
+
+    /**
+     * creates the query index for the given definition
+     *
+     * @param path       the repository path of the definition
+     * @param definition the index definition
+     */
+    protected abstract QueryIndex createIndex(String path, NodeState definition) throws Exception;
+
+    /**
+     * called with the current state of a definition whose visible properties didn't change, its hidden content
+     * or reindex flags may have
+     */
+    protected void updateIndex(QueryIndex index, NodeState definition) {
+    }
+
+    /**
+     * @param definition an index definition
+     * @return a string which changes only if the visible properties or child nodes of the definition, or its
+     * unique id, do
+     */
+    public static String fingerprint(NodeState definition) {
+        StringBuilder builder = new StringBuilder();
+        appendFingerprint(definition, builder);
+        return builder.toString();
+    }
+
+    private static void appendFingerprint(NodeState state, StringBuilder builder) {
+        Map<String, String> properties = new TreeMap<String, String>();
+        for (PropertyState property : state.getProperties()) {
+            String name = property.getName();
+            if ((!name.startsWith(":") || IndexDefinitions.UID.equals(name)) && !REINDEX_PROPERTY_NAME.equals(name) && !"reindexCount".equals(name)) {
+                properties.put(name, property.getType().tag() == PropertyType.BINARY
+                        ? property.getType().toString() : property.getType() + property.getValue(Type.STRINGS).toString());
+            }
+        }
+        builder.append(properties);
+        for (ChildNodeEntry child : state.getChildNodeEntries()) {
+            if (!child.getName().startsWith(":")) {
+                builder.append('/').append(child.getName()).append('{');
+                appendFingerprint(child.getNodeState(), builder);
+                builder.append('}');
+            }
+        }
+    }
+
+    private static class Entry {
+        private final String fingerprint;
+        private final QueryIndex index;
+
+        private Entry(String fingerprint, QueryIndex index) {
+            this.fingerprint = fingerprint;
+            this.index = index;
+        }
+    }
+}
@@ -0,0 +1,342 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.tteofili.apacheconeu14.oak.search.util;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import org.apache.jackrabbit.oak.api.Blob;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Extracts the text of binary properties for the index editors.
+ * Extraction runs on a bounded pool of workers and never makes the indexing thread wait: a text which isn't
+ * available yet is extracted in the background and the caller is told through a {@link Callback} once it's
+ * ready, so that the node can be indexed again. Binaries bigger than the size limit are skipped and
+ * extractions taking longer than the timeout are abandoned.
+ * Extracted texts are cached by the content identity of the blobs, so that re-saving a node or copying a subtree
+ * sharing the same binaries doesn't extract them again. Only actual results are cached, binaries which failed
+ * or timed out are extracted again the next time they're indexed.
+ * Binaries without a content identity are extracted in the background as well, but as they can't be told apart
+ * by content their extractions and texts are tracked by blob instance: the text is kept (weakly, and for a
+ * bounded number of binaries) until the node holding the blob is indexed again.
+ */
+public class TextExtractionService {
+
+    /**
+     * number of extraction workers
+     */
+    public static final int THREADS = Integer.getInteger("textExtraction.threads", 2);
+
+    /**
+     * maximum number of binaries waiting for a worker, more are skipped
+     */
+    public static final int QUEUE_SIZE = Integer.getInteger("textExtraction.queueSize", 100);
+
+    /**
+     * binaries bigger than this (in bytes) are not extracted
+     */
+    public static final long MAX_BINARY_SIZE = Long.getLong("textExtraction.maxBinarySize", 10 * 1024 * 1024);
+
+    /**
+     * maximum number of chars extracted from each binary
+     */
+    public static final int MAX_TEXT_LENGTH = Integer.getInteger("textExtraction.maxTextLength", 100000);
+
+    /**
+     * how long (in ms) the extraction of a binary may take, including its time in the queue, before it's abandoned
+     */
+    public static final long TIMEOUT = Long.getLong("textExtraction.timeout", 5000);
+
+    /**
+     * maximum number of extracted chars cached in memory
+     */
+    public static final long CACHE_SIZE = Long.getLong("textExtraction.cacheSize", 10 * 1000 * 1000);
+
+    /**
+     * directory of the persistent extracted text cache
+     */
+    public static final String CACHE_PATH = System.getProperty("textExtraction.cachePath", "/tmp/oak-extracted-text");
+
+    private static TextExtractionService defaultService;
+
+    /**
+     * Told about the texts extracted in the background
+     */
+    public interface Callback {
+
+        /**
+         * the text of the binary isn't available yet, it's being extracted in the background
+         */
+        void pending(Blob blob);
+
+        /**
+         * the text of a binary which was pending has been extracted, and is now returned by
+         * {@link #getText(Blob, Callback)}; not called for binaries without text or whose extraction failed
+         */
+        void extracted(Blob blob);
+    }
+
+    private final Logger log = LoggerFactory.getLogger(getClass());
+
+    private final TextExtractor extractor;
+    private final ExtractedTextCache cache;
+    private final ThreadPoolExecutor executor;
+    private final ScheduledExecutorService timer;
+    private final long maxBinarySize;
+    private final int maxTextLength;
+    private final long timeout;
+
+    /**
+     * the extractions queued or running, by content identity of their binary
+     */
+    private final Map<String, Extraction> extractions = new HashMap<String, Extraction>();
+
+    /**
+     * the extractions queued or running of the binaries without a content identity, guarded by
+     * {@link #extractions}
+     */
+    private final Map<Blob, Extraction> anonymousExtractions = new IdentityHashMap<Blob, Extraction>();
+
+    /**
+     * the texts extracted from binaries without a content identity (weak keys are compared by identity)
+     */
+    private final Cache<Blob, String> anonymousTexts;
+
+    public TextExtractionService(TextExtractor extractor, ExtractedTextCache cache, int threads, int queueSize,
+                                 long maxBinarySize, int maxTextLength, long timeout) {
+        this.extractor = extractor;
+        this.cache = cache;
+        this.maxBinarySize = maxBinarySize;
+        this.maxTextLength = maxTextLength;
+        this.timeout = timeout;
+        this.anonymousTexts = CacheBuilder.newBuilder().weakKeys().maximumSize(threads + queueSize).build();
+        final AtomicInteger count = new AtomicInteger();
+        this.executor = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<Runnable>(queueSize), new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "text-extraction-" + count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        this.timer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "text-extraction-timeout");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * @return the service used by the index editors, extracting UTF-8 plain text and configured through
+     * the "textExtraction.*" system properties
+     */
+    public static synchronized TextExtractionService getDefault() {
+        if (defaultService == null) {
+            defaultService = new TextExtractionService(new PlainTextExtractor(),
+                    new ExtractedTextCache(new File(CACHE_PATH), CACHE_SIZE), THREADS, QUEUE_SIZE, MAX_BINARY_SIZE,
+                    MAX_TEXT_LENGTH, TIMEOUT);
+        }
+        return defaultService;
+    }
+
+    /**
+     * @return the text of the binary, {@code null} if it has none or it isn't available yet
+     */
+    public String getText(Blob blob) {
+        return getText(blob, null);
+    }
+
+    /**
+     * @param callback told if the text isn't available yet, and again once it has been extracted, may be
+     *                 {@code null}
+     * @return the text of the binary, {@code null} if it has none or it isn't available yet
+     */
+    public String getText(Blob blob, Callback callback) {
+        long length = blob.length();
+        if (length > maxBinarySize) {
+            log.debug("skipping text extraction of a binary of {} bytes", length);
+            return null;
+        }
+        String id = blob.getContentIdentity();
+        String cached = getCached(id, blob);
+        if (cached != null) {
+            return cached.length() > 0 ? cached : null;
+        }
+        synchronized (extractions) {
+            Extraction extraction = id != null ? extractions.get(id) : anonymousExtractions.get(blob);
+            if (extraction == null) {
+                // it may have been extracted in the meantime
+                cached = getCached(id, blob);
+                if (cached != null) {
+                    return cached.length() > 0 ? cached : null;
+                }
+                extraction = new Extraction(id, blob);
+                try {
+                    executor.execute(extraction);
+                } catch (RejectedExecutionException e) {
+                    // not cached, the binary will be extracted the next time it's indexed
+                    log.warn("text extraction queue is full, skipping binary {}", extraction);
+                    return null;
+                }
+                if (id != null) {
+                    extractions.put(id, extraction);
+                } else {
+                    anonymousExtractions.put(blob, extraction);
+                }
+                extraction.scheduleTimeout();
+            }
+            if (callback != null) {
+                extraction.callbacks.add(callback);
+                callback.pending(blob);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return the text extracted from the binary, empty if it has none, {@code null} if it isn't extracted
+     */
+    private String getCached(String id, Blob blob) {
+        return id != null ? cache.get(id) : anonymousTexts.getIfPresent(blob);
+    }
+
+    public void close() {
+        executor.shutdownNow();
+        timer.shutdownNow();
+    }
+
+    private class Extraction implements Runnable {
+        /**
+         * {@code null} for binaries without a content identity
+         */
+        private final String id;
+        private final Blob blob;
+        /**
+         * guarded by {@link #extractions}, as the fields below
+         */
+        private final List<Callback> callbacks = new ArrayList<Callback>(1);
+        private Thread runner;
+        private boolean done;
+
+        private Extraction(String id, Blob blob) {
+            this.id = id;
+            this.blob = blob;
+        }
+
+        private void scheduleTimeout() {
+            timer.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    synchronized (extractions) {
+                        if (done) {
+                            return;
+                        }
+                        done = true;
+                        // not cached, so that the binary is extracted again the next time it's indexed
+                        remove();
+                        if (runner != null) {
+                            runner.interrupt();
+                        }
+                    }
+                    log.warn("text extraction of binary {} timed out after {} ms", Extraction.this, timeout);
+                }
+            }, timeout, TimeUnit.MILLISECONDS);
+        }
+
+        @Override
+        public void run() {
+            synchronized (extractions) {
+                if (done) {
+                    return;
+                }
+                runner = Thread.currentThread();
+            }
+            String text = null;
+            boolean failed = false;
+            try {
+                text = extractor.extract(blob, maxTextLength);
+            } catch (Exception e) {
+                failed = true;
+                log.warn("could not extract text from binary {}", this, e);
+            }
+            if (!failed) {
+                // an actual result, even if it came after the timeout
+                if (id != null) {
+                    cache.put(id, text != null ? text : "");
+                } else {
+                    anonymousTexts.put(blob, text != null ? text : "");
+                }
+            }
+            List<Callback> extracted = null;
+            synchronized (extractions) {
+                runner = null;
+                // clears the interrupt of a timeout which raced with the end of the extraction
+                Thread.interrupted();
+                if (done) {
+                    return;
+                }
+                done = true;
+                remove();
+                if (!failed && text != null && text.length() > 0) {
+                    extracted = new ArrayList<Callback>(callbacks);
+                }
+            }
+            if (extracted != null) {
+                for (Callback callback : extracted) {
+                    try {
+                        callback.extracted(blob);
+                    } catch (RuntimeException e) {
+                        log.error("text extraction callback failed for binary {}", this, e);
+                    }
+                }
+            }
+        }
+
+        private void remove() {
+            Map<?, Extraction> map = id != null ? extractions : anonymousExtractions;
+            Object key = id != null ? id : blob;
+            if (map.get(key) == this) {
+                map.remove(key);
+            }
+        }
+
+        @Override
+        public String toString() {
+            return id != null ? id : "without content identity";
+        }
+    }
+}
@@ -0,0 +1,35 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.tteofili.apacheconeu14.oak.search.util;
+
+import java.io.IOException;
+
+import org.apache.jackrabbit.oak.api.Blob;
+
+/**
+ * Extracts the text to be indexed from a binary, called by the {@link TextExtractionService} workers
+ */
+public interface TextExtractor {
+
+    /**
+     * @param blob      the binary
+     * @param maxLength the maximum number of chars to be extracted
+     * @return the text of the binary, {@code null} if it isn't supported
+     * @throws IOException if the binary can't be read
+     */
+    String extract(Blob blob, int maxLength) throws IOException;
+}
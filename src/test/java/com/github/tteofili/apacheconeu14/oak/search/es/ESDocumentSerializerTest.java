@@ -0,0 +1,112 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.tteofili.apacheconeu14.oak.search.es;
+
+import java.math.BigDecimal;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import com.github.tteofili.apacheconeu14.oak.search.util.IndexingRules;
+import org.apache.jackrabbit.oak.api.Type;
+import org.apache.jackrabbit.oak.spi.state.NodeBuilder;
+import org.elasticsearch.common.xcontent.XContentHelper;
+import org.junit.Test;
+
+import static org.apache.jackrabbit.oak.plugins.memory.EmptyNodeState.EMPTY_NODE;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Testcase for {@link com.github.tteofili.apacheconeu14.oak.search.es.ESDocumentSerializer}
+ */
+public class ESDocumentSerializerTest {
+
+    @Test
+    public void testTypedSerialization() throws Exception {
+        NodeBuilder builder = EMPTY_NODE.builder();
+        builder.setProperty("title", "a \"quoted\" title");
+        builder.setProperty("count", 42L);
+        builder.setProperty("ratio", 0.5d);
+        builder.setProperty("active", true);
+        builder.setProperty("price", new BigDecimal("12345678901234567890.123456789"));
+        builder.setProperty("tags", Arrays.asList("a", "b"), Type.STRINGS);
+
+        byte[] source = ESDocumentSerializer.serialize("/content/node", builder.getNodeState());
+        Map<String, Object> document = XContentHelper.convertToMap(source, false).v2();
+
+        assertEquals("/content/node", document.get("path"));
+        assertEquals(Arrays.asList("/content", "/"), document.get(":ancestors"));
+        assertEquals(2, ((Number) document.get(":depth")).intValue());
+        assertEquals("a \"quoted\" title", document.get("title"));
+        assertEquals(42L, ((Number) document.get("count")).longValue());
+        assertEquals(0.5d, ((Number) document.get("ratio")).doubleValue(), 0d);
+        assertEquals(Boolean.TRUE, document.get("active"));
+        // decimals keep their precision
+        assertEquals("12345678901234567890.123456789", document.get("price"));
+        assertTrue(document.get("tags") instanceof List);
+        assertEquals(Arrays.asList("a", "b"), document.get("tags"));
+    }
+
+    @Test
+    public void testBufferReuse() throws Exception {
+        NodeBuilder builder = EMPTY_NODE.builder();
+        builder.setProperty("title", "a long title which is longer than the next one");
+        ESDocumentSerializer.serialize("/a", builder.getNodeState());
+
+        builder = EMPTY_NODE.builder();
+        builder.setProperty("title", "short");
+        Map<String, Object> document = XContentHelper.convertToMap(ESDocumentSerializer.serialize("/b", builder.getNodeState()), false).v2();
+        assertEquals("/b", document.get("path"));
+        assertEquals("short", document.get("title"));
+    }
+
+    @Test
+    public void testIncludedProperties() throws Exception {
+        NodeBuilder definition = EMPTY_NODE.builder();
+        definition.setProperty(IndexingRules.INCLUDE_PROPERTY_NAMES, Arrays.asList("title"), Type.STRINGS);
+        IndexingRules rules = IndexingRules.from(definition.getNodeState());
+
+        NodeBuilder builder = EMPTY_NODE.builder();
+        builder.setProperty("title", "a title");
+        builder.setProperty("count", 42L);
+        Map<String, Object> document = XContentHelper.convertToMap(ESDocumentSerializer.serialize("/a", builder.getNodeState(), rules), false).v2();
+        assertEquals("/a", document.get("path"));
+        assertEquals("a title", document.get("title"));
+        assertFalse(document.containsKey("count"));
+
+        assertTrue(rules.isRelevant("title"));
+        assertTrue(rules.isRelevant("jcr:primaryType"));
+        assertFalse(rules.isRelevant("count"));
+    }
+
+    @Test
+    public void testTruncatedValues() throws Exception {
+        char[] chars = new char[ESUtils.IGNORE_ABOVE + 1];
+        Arrays.fill(chars, 'a');
+        NodeBuilder builder = EMPTY_NODE.builder();
+        builder.setProperty("long", new String(chars));
+        builder.setProperty("short", "a");
+        Map<String, Object> document = XContentHelper.convertToMap(ESDocumentSerializer.serialize("/a", builder.getNodeState()), false).v2();
+        assertEquals(Arrays.asList("long"), document.get(ESUtils.TRUNCATED));
+
+        builder.removeProperty("long");
+        document = XContentHelper.convertToMap(ESDocumentSerializer.serialize("/a", builder.getNodeState()), false).v2();
+        assertFalse(document.containsKey(ESUtils.TRUNCATED));
+    }
+}
@@ -0,0 +1,262 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.tteofili.apacheconeu14.oak.search.es;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import com.github.tteofili.apacheconeu14.oak.search.util.IndexingRules;
+import org.apache.jackrabbit.oak.api.Type;
+import org.apache.jackrabbit.oak.spi.state.NodeState;
+import org.junit.After;
+import org.junit.Test;
+
+import static org.apache.jackrabbit.oak.plugins.memory.EmptyNodeState.EMPTY_NODE;
+import static org.apache.jackrabbit.oak.plugins.memory.EmptyNodeState.MISSING_NODE;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Testcase for {@link com.github.tteofili.apacheconeu14.oak.search.es.ESIndexingQueue}
+ */
+public class ESIndexingQueueTest {
+
+    private final List<String> actions = Collections.synchronizedList(new ArrayList<String>());
+
+    /**
+     * the worker waits for it before sending its first update
+     */
+    private final CountDownLatch release = new CountDownLatch(1);
+
+    /**
+     * counted down when the worker got its first update
+     */
+    private final CountDownLatch started = new CountDownLatch(1);
+
+    private ESIndexingQueue queue;
+
+    @After
+    public void tearDown() {
+        release.countDown();
+        if (queue != null) {
+            queue.close();
+        }
+    }
+
+    @Test
+    public void testUpdatesOfSamePathCoalesced() throws Exception {
+        queue = newQueue(10, ESIndexingQueue.Backpressure.BLOCK, 0);
+        assertTrue(queue.offer("/a", state(1)));
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+
+        // queued while the worker is busy with /a
+        assertTrue(queue.offer("/b", state(1)));
+        assertTrue(queue.offer("/c", state(1)));
+        assertTrue(queue.offer("/b", state(2)));
+        assertTrue(queue.offer("/a", state(2)));
+        assertEquals(4, queue.getSize());
+        assertTrue(queue.getLag() >= 0);
+
+        release.countDown();
+        awaitEmpty();
+        // merged updates are sent after the ones queued meanwhile
+        assertEquals(Arrays.asList("index /a 1", "index /c 1", "index /b 2", "index /a 2"), actions);
+        assertEquals(0, queue.getLag());
+        assertEquals(0, queue.getDroppedCount());
+        assertFalse(queue.consumeReindexRequired());
+    }
+
+    @Test
+    public void testDeletesOrderedWithUpdates() throws Exception {
+        queue = newQueue(10, ESIndexingQueue.Backpressure.BLOCK, 0);
+        assertTrue(queue.offer("/a", state(1)));
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+
+        // the subtree is deleted, then the node is added back
+        assertTrue(queue.offer("/x", MISSING_NODE));
+        assertTrue(queue.offer("/x", state(1)));
+        // the node is deleted, its subtree left untouched
+        assertTrue(queue.offer("/y", state(1)));
+        assertTrue(queue.offerDelete("/y"));
+
+        release.countDown();
+        awaitEmpty();
+        assertEquals(Arrays.asList("index /a 1", "deleteSubtree /x", "index /x 1", "delete /y"), actions);
+    }
+
+    @Test
+    public void testSubtreeDeletesOrderedWithDescendants() throws Exception {
+        queue = newQueue(10, ESIndexingQueue.Backpressure.BLOCK, 0);
+        assertTrue(queue.offer("/z", state(1)));
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+
+        // a descendant updated again after its ancestor is deleted and added back
+        assertTrue(queue.offer("/a/b", state(1)));
+        assertTrue(queue.offer("/a", MISSING_NODE));
+        assertTrue(queue.offer("/a", state(1)));
+        assertTrue(queue.offer("/a/b", state(2)));
+        // a node updated, then deleted after one of its descendants is updated
+        assertTrue(queue.offer("/c", state(1)));
+        assertTrue(queue.offer("/c/d", state(1)));
+        assertTrue(queue.offer("/c", MISSING_NODE));
+
+        release.countDown();
+        awaitEmpty();
+        assertEquals(Arrays.asList("index /z 1", "deleteSubtree /a", "index /a 1", "index /a/b 2", "index /c/d 1",
+                "deleteSubtree /c"), actions);
+    }
+
+    @Test
+    public void testBackpressure() throws Exception {
+        queue = newQueue(1, ESIndexingQueue.Backpressure.DROP, 0);
+        assertTrue(queue.offer("/a", state(1)));
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+        assertTrue(queue.offer("/b", state(1)));
+        // updates of a queued path still fit
+        assertTrue(queue.offer("/b", state(2)));
+        assertFalse(queue.offer("/c", state(1)));
+        assertEquals(1, queue.getDroppedCount());
+        assertTrue(queue.consumeReindexRequired());
+        assertFalse(queue.consumeReindexRequired());
+        release.countDown();
+        awaitEmpty();
+        assertEquals(Arrays.asList("index /a 1", "index /b 2"), actions);
+    }
+
+    @Test
+    public void testSpill() throws Exception {
+        queue = newQueue(1, ESIndexingQueue.Backpressure.SPILL, 0);
+        assertTrue(queue.offer("/a", state(1)));
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+        assertTrue(queue.offer("/b", state(1)));
+        // rejected, to be indexed by the caller, so no reindex is needed
+        assertFalse(queue.offer("/c", state(1)));
+        assertEquals(1, queue.getDroppedCount());
+        assertFalse(queue.consumeReindexRequired());
+    }
+
+    @Test
+    public void testBlockingUntilRoomIsMade() throws Exception {
+        queue = newQueue(1, ESIndexingQueue.Backpressure.BLOCK, 0);
+        assertTrue(queue.offer("/a", state(1)));
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+        assertTrue(queue.offer("/b", state(1)));
+
+        final AtomicBoolean offered = new AtomicBoolean();
+        Thread thread = new Thread() {
+            @Override
+            public void run() {
+                offered.set(queue.offer("/c", state(1)));
+            }
+        };
+        thread.start();
+        thread.join(200);
+        assertTrue("offer to a full queue should block", thread.isAlive());
+
+        release.countDown();
+        thread.join(5000);
+        assertTrue(offered.get());
+        awaitEmpty();
+        assertEquals(Arrays.asList("index /a 1", "index /b 1", "index /c 1"), actions);
+        assertEquals(0, queue.getDroppedCount());
+    }
+
+    @Test
+    public void testFailedUpdatesRequireReindex() throws Exception {
+        queue = newQueue(10, ESIndexingQueue.Backpressure.BLOCK, 1);
+        release.countDown();
+        assertTrue(queue.offer("/a", state(1)));
+        awaitEmpty();
+        assertEquals(1, queue.getDroppedCount());
+        assertTrue(queue.consumeReindexRequired());
+    }
+
+    private ESIndexingQueue newQueue(int capacity, ESIndexingQueue.Backpressure backpressure, final int failures) {
+        return new ESIndexingQueue(null, capacity, 1, backpressure) {
+            @Override
+            protected ESBulkIndexer createIndexer() {
+                return new RecordingIndexer(failures);
+            }
+        };
+    }
+
+    private void awaitEmpty() throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (queue.getSize() > 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(0, queue.getSize());
+    }
+
+    private static NodeState state(long version) {
+        return EMPTY_NODE.builder().setProperty("v", version).getNodeState();
+    }
+
+    /**
+     * records the actions instead of sending them, the first one waits for the test to release it
+     */
+    private class RecordingIndexer extends ESBulkIndexer {
+        private final int failures;
+
+        private RecordingIndexer(int failures) {
+            super(null);
+            this.failures = failures;
+        }
+
+        @Override
+        public void index(String path, NodeState state, IndexingRules rules) {
+            await();
+            actions.add("index " + path + " " + state.getProperty("v").getValue(Type.LONG));
+        }
+
+        @Override
+        public void delete(String path) {
+            await();
+            actions.add("delete " + path);
+        }
+
+        @Override
+        public void deleteSubtree(String path) {
+            await();
+            actions.add("deleteSubtree " + path);
+        }
+
+        @Override
+        public void flush() {
+        }
+
+        @Override
+        public int consumeFailures() {
+            return failures;
+        }
+
+        private void await() {
+            started.countDown();
+            try {
+                release.await(5, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+}
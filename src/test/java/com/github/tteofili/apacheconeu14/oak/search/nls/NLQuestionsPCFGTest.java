@@ -18,7 +18,9 @@ package com.github.tteofili.apacheconeu14.oak.search.nls;
 
 import org.junit.Test;
 
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
 
 /**
  * Testcase for {@link com.github.tteofili.apacheconeu14.oak.search.nls.NLQuestionsPCFG}
@@ -35,4 +37,39 @@ public class NLQuestionsPCFGTest {
         filteredQuestion = nlQuestionsPCFG.filterQuestion("who is the admin");
         assertNotNull(filteredQuestion);
     }
+
+    @Test
+    public void testCompiledGrammarMatchesReference() throws Exception {
+        NLQuestionsPCFG nlQuestionsPCFG = new NLQuestionsPCFG();
+        String[] questions = new String[]{"how do you nicely work there", "what do you see  there",
+                "what is   the repository", "who is   the admin", "which do they badly see there"};
+        for (String question : questions) {
+            String filteredQuestion = nlQuestionsPCFG.filterQuestion(question);
+            assertNotNull(filteredQuestion);
+            assertEquals(nlQuestionsPCFG.filterQuestionWithGrammar(question), filteredQuestion);
+        }
+    }
+
+    @Test
+    public void testCompiledGrammarParsesSingleSpacedQuestions() throws Exception {
+        NLQuestionsPCFG nlQuestionsPCFG = new NLQuestionsPCFG();
+        CompiledPCFG compiledGrammar = nlQuestionsPCFG.getCompiledGrammar();
+        // empty constituents such as E don't need empty tokens
+        assertEquals("repository", compiledGrammar.parseRightmostTerminal("what is the repository"));
+        assertEquals("admin", compiledGrammar.parseRightmostTerminal("who is the admin"));
+        assertEquals("there", compiledGrammar.parseRightmostTerminal("how do you nicely work there"));
+        assertEquals("there", compiledGrammar.parseRightmostTerminal("which do they badly see there"));
+        assertEquals("repository", compiledGrammar.parseRightmostTerminal("what is   the repository"));
+        assertNull(compiledGrammar.parseRightmostTerminal("the repository what"));
+        assertNull(compiledGrammar.parseRightmostTerminal("is"));
+    }
+
+    @Test
+    public void testKeywordsAreNotParsed() throws Exception {
+        NLQuestionsPCFG nlQuestionsPCFG = new NLQuestionsPCFG();
+        assertNull(nlQuestionsPCFG.filterQuestion("oak lucene index"));
+        assertNull(nlQuestionsPCFG.filterQuestion("oak lucene index"));
+        assertEquals(1, nlQuestionsPCFG.getCacheStats().hitCount());
+        assertEquals(1, nlQuestionsPCFG.getCacheStats().missCount());
+    }
 }
@@ -17,6 +17,10 @@
 package com.github.tteofili.apacheconeu14.oak.search.nls;
 
 import javax.annotation.Nonnull;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
 
 import org.apache.jackrabbit.JcrConstants;
 import org.apache.jackrabbit.oak.Oak;
@@ -42,6 +46,14 @@ import org.apache.jackrabbit.oak.spi.security.OpenSecurityProvider;
 import org.apache.jackrabbit.oak.spi.state.NodeBuilder;
 import org.apache.jackrabbit.oak.spi.state.NodeState;
 import org.apache.jackrabbit.oak.spi.state.NodeStore;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.MultiDocValues;
+import org.apache.lucene.index.NumericDocValues;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.TermQuery;
+import org.apache.lucene.search.TopDocs;
+import org.apache.lucene.util.Bits;
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
@@ -49,6 +61,7 @@ import org.junit.Test;
 import static junit.framework.Assert.assertEquals;
 import static junit.framework.Assert.assertFalse;
 import static junit.framework.Assert.assertNotNull;
+import static junit.framework.Assert.assertNull;
 import static junit.framework.Assert.assertTrue;
 import static org.apache.jackrabbit.JcrConstants.JCR_PRIMARYTYPE;
 import static org.apache.jackrabbit.oak.plugins.memory.EmptyNodeState.EMPTY_NODE;
@@ -63,6 +76,11 @@ public class NLSIndexIntegrationTest {
     protected EditorHook hook;
     private ContentRepository repository;
 
+    /**
+     * the index of the definition of the test, cleared after it
+     */
+    private NLSIndexNode indexNode;
+
     @Before
     public void setUp() throws Exception {
         store = new SegmentNodeStore();
@@ -95,8 +113,22 @@ public class NLSIndexIntegrationTest {
 
     @After
     public void tearDown() throws Exception {
-        IndexUtils.getWriter().deleteAll();
-        IndexUtils.getWriter().commit();
+        if (indexNode != null) {
+            indexNode.getWriter().deleteAll();
+            indexNode.getWriter().commit();
+        }
+    }
+
+    /**
+     * @return the index node of the definition at /oak:index/es in the given root, each definition has its own
+     */
+    private NLSIndexNode getIndexNode(NodeState root) {
+        indexNode = IndexUtils.getIndexNode("/oak:index/es", root.getChildNode("oak:index").getChildNode("es"));
+        return indexNode;
+    }
+
+    private QueryIndex newQueryIndex(NodeState root) {
+        return new NLSQueryIndex(getIndexNode(root), IndexUtils.PAGE_SIZE, IndexUtils.MAX_PAGE_SIZE);
     }
 
     @Test
@@ -114,7 +146,7 @@ public class NLSIndexIntegrationTest {
 
         NodeState indexed = hook.processCommit(before, after, CommitInfo.EMPTY);
 
-        QueryIndex queryIndex = new NLSQueryIndex();
+        QueryIndex queryIndex = newQueryIndex(indexed);
         FilterImpl filter = new FilterImpl(mock(SelectorImpl.class), "", new QueryEngineSettings());
         filter.restrictPath("/newnode", Filter.PathRestriction.EXACT);
         filter.restrictProperty("nls", Operator.EQUAL,
@@ -127,4 +159,144 @@ public class NLSIndexIntegrationTest {
         assertEquals("/newnode", next.getPath());
         assertFalse(cursor.hasNext());
     }
+
+    @Test
+    public void testSubtreeDeletion() throws Exception {
+        NodeBuilder builder = EMPTY_NODE.builder();
+        builder.child("oak:index").child("es")
+                .setProperty(JCR_PRIMARYTYPE, "oak:QueryIndexDefinition")
+                .setProperty("type", "nls");
+
+        NodeState before = builder.getNodeState();
+        builder.child("newnode").setProperty("jcr:description", "a repository is quite a thing");
+        builder.child("newnode").child("child").setProperty("jcr:description", "another repository");
+        NodeState after = builder.getNodeState();
+        NodeState indexed = hook.processCommit(before, after, CommitInfo.EMPTY);
+
+        QueryIndex queryIndex = newQueryIndex(indexed);
+        assertEquals(Arrays.asList("/newnode"), queryPaths(queryIndex, indexed, "/newnode"));
+        assertEquals(Arrays.asList("/newnode/child"), queryPaths(queryIndex, indexed, "/newnode/child"));
+
+        builder = indexed.builder();
+        builder.getChildNode("newnode").remove();
+        indexed = hook.processCommit(indexed, builder.getNodeState(), CommitInfo.EMPTY);
+
+        assertTrue("deleted node still found", queryPaths(queryIndex, indexed, "/newnode").isEmpty());
+        assertTrue("descendant of deleted node still found", queryPaths(queryIndex, indexed, "/newnode/child").isEmpty());
+    }
+
+    /**
+     * @return the paths found by the question "what is the repository" at the given path
+     */
+    private static List<String> queryPaths(QueryIndex queryIndex, NodeState root, String path) {
+        FilterImpl filter = new FilterImpl(mock(SelectorImpl.class), "", new QueryEngineSettings());
+        filter.restrictPath(path, Filter.PathRestriction.EXACT);
+        filter.restrictProperty("nls", Operator.EQUAL,
+                PropertyValues.newString("what is the repository"));
+        Cursor cursor = queryIndex.query(filter, root);
+        assertNotNull(cursor);
+        List<String> paths = new ArrayList<String>();
+        while (cursor.hasNext()) {
+            paths.add(cursor.next().getPath());
+        }
+        return paths;
+    }
+
+    @Test
+    public void testAbandonedCursorsHoldNoSearcher() throws Exception {
+        NodeBuilder builder = EMPTY_NODE.builder();
+        builder.child("oak:index").child("es")
+                .setProperty(JCR_PRIMARYTYPE, "oak:QueryIndexDefinition")
+                .setProperty("type", "nls");
+
+        NodeState before = builder.getNodeState();
+        for (int i = 0; i < 5; i++) {
+            builder.child("node" + i).setProperty("jcr:description", "a repository is quite a thing");
+        }
+        NodeState indexed = hook.processCommit(before, builder.getNodeState(), CommitInfo.EMPTY);
+
+        NLSIndexNode indexNode = getIndexNode(indexed);
+        QueryIndex queryIndex = new NLSQueryIndex(indexNode, 1, 2);
+        FilterImpl filter = new FilterImpl(mock(SelectorImpl.class), "", new QueryEngineSettings());
+        filter.restrictProperty("nls", Operator.EQUAL,
+                PropertyValues.newString("what is the repository"));
+
+        // the first query keeps its searcher available for the next pages, without holding it
+        Cursor cursor = queryIndex.query(filter, indexed);
+        assertTrue(cursor.hasNext());
+        cursor.next();
+        // the classifier is trained by the first query, on a copy which doesn't hold the searcher
+        indexNode.getClassifier().awaitTraining(10, TimeUnit.SECONDS);
+        int refCount = getRefCount(indexNode);
+
+        for (int i = 0; i < 3; i++) {
+            // partially read, then abandoned
+            cursor = queryIndex.query(filter, indexed);
+            assertTrue(cursor.hasNext());
+            cursor.next();
+            assertTrue(cursor.hasNext());
+            cursor.next();
+            assertEquals(refCount, getRefCount(indexNode));
+        }
+
+        // all the pages come from the searcher of the query
+        int count = 0;
+        for (cursor = queryIndex.query(filter, indexed); cursor.hasNext(); cursor.next()) {
+            count++;
+        }
+        assertEquals(5, count);
+        assertEquals(refCount, getRefCount(indexNode));
+    }
+
+    @Test
+    public void testOrderedPropertiesOfMixedTypes() throws Exception {
+        NodeBuilder builder = EMPTY_NODE.builder();
+        builder.child("oak:index").child("es")
+                .setProperty(JCR_PRIMARYTYPE, "oak:QueryIndexDefinition")
+                .setProperty("type", "nls")
+                .setProperty(NLSIndexEditor.ORDERED_PROPERTIES, Arrays.asList("rank|Long", "created|Date"), Type.STRINGS);
+
+        NodeState before = builder.getNodeState();
+        builder.child("long").setProperty("rank", 3L).setProperty("created", "2014-11-17T10:00:00.000Z", Type.DATE);
+        builder.child("string").setProperty("rank", "12").setProperty("created", "yesterday");
+        builder.child("text").setProperty("rank", "high");
+        NodeState indexed = hook.processCommit(before, builder.getNodeState(), CommitInfo.EMPTY);
+
+        NLSIndexNode indexNode = getIndexNode(indexed);
+        assertEquals(Long.valueOf(3), getNumericDocValue(indexNode, "/long", "rank"));
+        assertEquals(Long.valueOf(12), getNumericDocValue(indexNode, "/string", "rank"));
+        assertNull(getNumericDocValue(indexNode, "/text", "rank"));
+        assertEquals(Long.valueOf(1416218400000L), getNumericDocValue(indexNode, "/long", "created"));
+        assertNull(getNumericDocValue(indexNode, "/string", "created"));
+    }
+
+    /**
+     * @return the numeric doc value of the field for the doc of the given path, {@code null} if it has none
+     */
+    private static Long getNumericDocValue(NLSIndexNode indexNode, String path, String field) throws Exception {
+        IndexSearcher searcher = indexNode.acquireSearcher();
+        try {
+            TopDocs docs = searcher.search(new TermQuery(new Term(IndexUtils.PATH, path)), 1);
+            assertEquals("no doc for " + path, 1, docs.totalHits);
+            int doc = docs.scoreDocs[0].doc;
+            IndexReader reader = searcher.getIndexReader();
+            Bits docsWithField = MultiDocValues.getDocsWithField(reader, field);
+            if (docsWithField == null || !docsWithField.get(doc)) {
+                return null;
+            }
+            NumericDocValues values = MultiDocValues.getNumericValues(reader, field);
+            return values.get(doc);
+        } finally {
+            indexNode.releaseSearcher(searcher);
+        }
+    }
+
+    private static int getRefCount(NLSIndexNode indexNode) {
+        IndexSearcher searcher = indexNode.acquireSearcher();
+        try {
+            return searcher.getIndexReader().getRefCount();
+        } finally {
+            indexNode.releaseSearcher(searcher);
+        }
+    }
 }
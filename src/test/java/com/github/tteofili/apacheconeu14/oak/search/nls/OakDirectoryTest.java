@@ -0,0 +1,158 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.tteofili.apacheconeu14.oak.search.nls;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+import org.apache.jackrabbit.oak.api.Type;
+import org.apache.jackrabbit.oak.spi.state.NodeBuilder;
+import org.apache.jackrabbit.oak.spi.state.NodeState;
+import org.apache.lucene.analysis.standard.StandardAnalyzer;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.document.StringField;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.SerialMergeScheduler;
+import org.apache.lucene.index.Term;
+import org.elasticsearch.common.lucene.Lucene;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.apache.jackrabbit.oak.plugins.memory.EmptyNodeState.EMPTY_NODE;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Testcase for {@link com.github.tteofili.apacheconeu14.oak.search.nls.OakDirectory}
+ */
+public class OakDirectoryTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testIndexStoredInOak() throws Exception {
+        NodeBuilder definition = EMPTY_NODE.builder();
+        write(definition, "/a", "/b");
+        assertTrue(definition.hasChildNode(OakDirectory.DATA));
+
+        // another cluster node reads the stored index through its own local copy
+        OakDirectory directory = new OakDirectory(definition.getNodeState().getChildNode(OakDirectory.DATA), folder.newFolder("read"));
+        DirectoryReader reader = DirectoryReader.open(directory);
+        assertEquals(2, reader.numDocs());
+
+        // each write stores a new version of the directory, so that states are compared by version only
+        String version = definition.getChildNode(OakDirectory.DATA).getProperty(OakDirectory.PROP_VERSION).getValue(Type.STRING);
+        write(definition, "/b", "/c");
+        assertFalse(version.equals(definition.getChildNode(OakDirectory.DATA).getProperty(OakDirectory.PROP_VERSION).getValue(Type.STRING)));
+        assertTrue(directory.setState(definition.getNodeState().getChildNode(OakDirectory.DATA)));
+        assertFalse(directory.setState(definition.getNodeState().getChildNode(OakDirectory.DATA)));
+        DirectoryReader newReader = DirectoryReader.openIfChanged(reader);
+        assertNotNull(newReader);
+        assertEquals(3, newReader.numDocs());
+
+        reader.close();
+        newReader.close();
+        directory.close();
+    }
+
+    @Test
+    public void testLocalCopyOfAnotherIndex() throws Exception {
+        NodeBuilder first = EMPTY_NODE.builder();
+        write(first, "/a");
+        NodeBuilder second = EMPTY_NODE.builder();
+        write(second, "/b");
+
+        // files with the same names and lengths, but different content, aren't reused
+        File localDir = folder.newFolder("read");
+        assertEquals("/a", readPath(first, localDir));
+        assertEquals("/b", readPath(second, localDir));
+        assertEquals("/a", readPath(first, localDir));
+    }
+
+    @Test
+    public void testStaleLocalCopiesDeleted() throws Exception {
+        NodeBuilder definition = EMPTY_NODE.builder();
+        write(definition, "/a");
+        write(definition, "/b");
+        File localDir = folder.newFolder("read");
+        OakDirectory directory = new OakDirectory(definition.getNodeState().getChildNode(OakDirectory.DATA), localDir);
+        DirectoryReader reader = DirectoryReader.open(directory);
+        assertEquals(2, reader.leaves().size());
+        Set<String> before = new HashSet<String>(Arrays.asList(localDir.list()));
+
+        // the two segments are merged into a new one, their files are deleted from Oak
+        OakDirectory writeDirectory = new OakDirectory(definition.child(OakDirectory.DATA), folder.newFolder());
+        IndexWriterConfig config = new IndexWriterConfig(Lucene.VERSION, new StandardAnalyzer());
+        config.setMergeScheduler(new SerialMergeScheduler());
+        IndexWriter writer = new IndexWriter(writeDirectory, config);
+        writer.forceMerge(1);
+        writer.close();
+        writeDirectory.close();
+
+        NodeState data = definition.getNodeState().getChildNode(OakDirectory.DATA);
+        assertTrue(directory.setState(data));
+        DirectoryReader newReader = DirectoryReader.openIfChanged(reader);
+        assertNotNull(newReader);
+        assertEquals(1, newReader.leaves().size());
+        reader.close();
+
+        for (String name : localDir.list()) {
+            assertTrue("stale local copy " + name, data.hasChildNode(name));
+        }
+        for (String name : before) {
+            if (!data.hasChildNode(name)) {
+                assertFalse("merged away file still copied: " + name, new File(localDir, name).exists());
+            }
+        }
+        assertEquals(2, newReader.numDocs());
+        newReader.close();
+        directory.close();
+    }
+
+    private String readPath(NodeBuilder definition, File localDir) throws Exception {
+        OakDirectory directory = new OakDirectory(definition.getNodeState().getChildNode(OakDirectory.DATA), localDir);
+        try {
+            DirectoryReader reader = DirectoryReader.open(directory);
+            try {
+                return reader.document(0).get("path");
+            } finally {
+                reader.close();
+            }
+        } finally {
+            directory.close();
+        }
+    }
+
+    private void write(NodeBuilder definition, String... paths) throws Exception {
+        OakIndexWriter writer = new OakIndexWriter(definition.child(OakDirectory.DATA), folder.newFolder());
+        for (String path : paths) {
+            Document document = new Document();
+            document.add(new StringField("path", path, Field.Store.YES));
+            writer.updateDocument(new Term("path", path), document);
+        }
+        writer.afterOakCommit();
+    }
+}
@@ -0,0 +1,75 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.tteofili.apacheconeu14.oak.search.util;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import org.apache.jackrabbit.oak.api.Type;
+import org.apache.jackrabbit.oak.query.QueryEngineSettings;
+import org.apache.jackrabbit.oak.query.ast.SelectorImpl;
+import org.apache.jackrabbit.oak.query.index.FilterImpl;
+import org.apache.jackrabbit.oak.spi.query.Filter;
+import org.apache.jackrabbit.oak.spi.state.NodeBuilder;
+import org.junit.Test;
+
+import static org.apache.jackrabbit.oak.plugins.memory.EmptyNodeState.EMPTY_NODE;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * Testcase for {@link com.github.tteofili.apacheconeu14.oak.search.util.IndexingRules}
+ */
+public class IndexingRulesTest {
+
+    @Test
+    public void testCoveredPaths() throws Exception {
+        IndexingRules rules = IndexingRules.from(EMPTY_NODE);
+        assertFalse(rules.covers(filter(null, false, "/", Filter.PathRestriction.NO_RESTRICTION)));
+        assertFalse(rules.covers(filter(null, false, "/", Filter.PathRestriction.DIRECT_CHILDREN)));
+        assertTrue(rules.covers(filter(null, false, "/content", Filter.PathRestriction.ALL_CHILDREN)));
+        assertTrue(rules.covers(filter(null, false, "/content", Filter.PathRestriction.EXACT)));
+        assertFalse(rules.covers(filter(null, false, "/jcr:system/jcr:versionStorage", Filter.PathRestriction.EXACT)));
+        assertFalse(rules.covers(filter(null, false, "/oak:index/nls", Filter.PathRestriction.ALL_CHILDREN)));
+    }
+
+    @Test
+    public void testCoveredTypes() throws Exception {
+        NodeBuilder definition = EMPTY_NODE.builder();
+        definition.setProperty(IndexingRules.EXCLUDED_PATHS, Collections.<String>emptyList(), Type.STRINGS);
+        definition.setProperty(IndexingRules.NODE_TYPES, Arrays.asList("nt:file", "mix:title"), Type.NAMES);
+        IndexingRules rules = IndexingRules.from(definition.getNodeState());
+        assertFalse(rules.covers(filter(null, true, "/", Filter.PathRestriction.NO_RESTRICTION)));
+        assertTrue(rules.covers(filter("nt:file", false, "/", Filter.PathRestriction.NO_RESTRICTION)));
+        assertFalse(rules.covers(filter("nt:folder", false, "/", Filter.PathRestriction.NO_RESTRICTION)));
+    }
+
+    private static Filter filter(String primaryType, boolean allTypes, String path, Filter.PathRestriction restriction) {
+        SelectorImpl selector = mock(SelectorImpl.class);
+        when(selector.matchesAllTypes()).thenReturn(allTypes);
+        when(selector.getPrimaryTypes()).thenReturn(primaryType != null
+                ? Collections.singleton(primaryType) : Collections.<String>emptySet());
+        when(selector.getMixinTypes()).thenReturn(Collections.<String>emptySet());
+        FilterImpl filter = new FilterImpl(selector, "", new QueryEngineSettings());
+        if (restriction != Filter.PathRestriction.NO_RESTRICTION) {
+            filter.restrictPath(path, restriction);
+        }
+        return filter;
+    }
+}
@@ -0,0 +1,69 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.tteofili.apacheconeu14.oak.search.util;
+
+import java.util.Arrays;
+
+import org.junit.Test;
+
+import static org.apache.jackrabbit.oak.plugins.memory.EmptyNodeState.EMPTY_NODE;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Testcase for {@link com.github.tteofili.apacheconeu14.oak.search.util.PathFilter}
+ */
+public class PathFilterTest {
+
+    @Test
+    public void testNestedRules() throws Exception {
+        PathFilter pathFilter = new PathFilter(Arrays.asList("/content", "/libs/docs"),
+                Arrays.asList("/content/archive", "/libs"));
+        assertEquals(PathFilter.Result.TRAVERSE, pathFilter.filter("/"));
+        assertEquals(PathFilter.Result.INCLUDE, pathFilter.filter("/content"));
+        assertEquals(PathFilter.Result.INCLUDE, pathFilter.filter("/content/site/page"));
+        assertEquals(PathFilter.Result.EXCLUDE, pathFilter.filter("/content/archive"));
+        assertEquals(PathFilter.Result.EXCLUDE, pathFilter.filter("/content/archive/old/page"));
+        assertEquals(PathFilter.Result.TRAVERSE, pathFilter.filter("/libs"));
+        assertEquals(PathFilter.Result.EXCLUDE, pathFilter.filter("/libs/apps"));
+        assertEquals(PathFilter.Result.INCLUDE, pathFilter.filter("/libs/docs/guide"));
+        assertEquals(PathFilter.Result.EXCLUDE, pathFilter.filter("/var"));
+    }
+
+    @Test
+    public void testDefaultRules() throws Exception {
+        PathFilter pathFilter = IndexingRules.from(EMPTY_NODE).getPathFilter();
+        assertEquals(PathFilter.Result.INCLUDE, pathFilter.filter("/"));
+        assertEquals(PathFilter.Result.INCLUDE, pathFilter.filter("/content"));
+        assertEquals(PathFilter.Result.EXCLUDE, pathFilter.filter("/jcr:system/jcr:versionStorage"));
+        assertEquals(PathFilter.Result.EXCLUDE, pathFilter.filter("/oak:index/nls"));
+    }
+
+    @Test
+    public void testIncludedSubtrees() throws Exception {
+        PathFilter pathFilter = new PathFilter(Arrays.asList("/content", "/libs/docs"),
+                Arrays.asList("/content/archive", "/libs"));
+        assertFalse(pathFilter.includesSubtree("/"));
+        assertFalse(pathFilter.includesSubtree("/content"));
+        assertTrue(pathFilter.includesSubtree("/content/site"));
+        assertFalse(pathFilter.includesSubtree("/content/archive"));
+        assertTrue(pathFilter.includesSubtree("/libs/docs"));
+        assertFalse(pathFilter.includesSubtree("/var"));
+        assertTrue(PathFilter.ALL.includesSubtree("/"));
+    }
+}
@@ -0,0 +1,94 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.tteofili.apacheconeu14.oak.search.util;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.jackrabbit.oak.spi.state.NodeState;
+import org.junit.Test;
+
+import static org.apache.jackrabbit.oak.plugins.memory.EmptyNodeState.EMPTY_NODE;
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Testcase for {@link com.github.tteofili.apacheconeu14.oak.search.util.PendingTexts}
+ */
+public class PendingTextsTest {
+
+    private final PendingTexts pendingTexts = new PendingTexts();
+
+    private final List<String> reindexed = new ArrayList<String>();
+
+    private final PendingTexts.Indexer indexer = new PendingTexts.Indexer() {
+        @Override
+        public void index(String path, NodeState state) {
+            reindexed.add(path);
+        }
+    };
+
+    @Test
+    public void testReindexedOnceExtracted() throws Exception {
+        PendingTexts.Entry entry = index("/a", true);
+        assertEquals(1, pendingTexts.size());
+        entry.extracted(null);
+        assertEquals(1, reindexed.size());
+        assertEquals(0, pendingTexts.size());
+
+        // nodes with all their texts are not tracked
+        index("/b", false);
+        assertEquals(0, pendingTexts.size());
+
+        // the text may be extracted before the doc is written
+        PendingTexts.Entry early = pendingTexts.indexing("/c", EMPTY_NODE, indexer);
+        early.pending(null);
+        early.extracted(null);
+        assertEquals(1, reindexed.size());
+        pendingTexts.indexed(early);
+        assertEquals(2, reindexed.size());
+    }
+
+    @Test
+    public void testStaleStatesNotReindexed() throws Exception {
+        PendingTexts.Entry old = index("/a", true);
+        index("/a", false);
+        old.extracted(null);
+        assertEquals(0, reindexed.size());
+
+        PendingTexts.Entry deleted = index("/b", true);
+        pendingTexts.deleted("/b");
+        deleted.extracted(null);
+
+        PendingTexts.Entry inDeletedSubtree = index("/c/d", true);
+        PendingTexts.Entry outside = index("/cd", true);
+        pendingTexts.subtreeDeleted("/c");
+        inDeletedSubtree.extracted(null);
+        assertEquals(0, reindexed.size());
+        assertEquals(1, pendingTexts.size());
+        outside.extracted(null);
+        assertEquals(1, reindexed.size());
+    }
+
+    private PendingTexts.Entry index(String path, boolean pending) {
+        PendingTexts.Entry entry = pendingTexts.indexing(path, EMPTY_NODE, indexer);
+        if (pending) {
+            entry.pending(null);
+        }
+        pendingTexts.indexed(entry);
+        return entry;
+    }
+}
@@ -0,0 +1,75 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.tteofili.apacheconeu14.oak.search.util;
+
+import java.util.List;
+
+import com.github.tteofili.apacheconeu14.oak.search.nls.NLSQueryIndex;
+import org.apache.jackrabbit.oak.spi.query.QueryIndex;
+import org.apache.jackrabbit.oak.spi.state.NodeBuilder;
+import org.apache.jackrabbit.oak.spi.state.NodeState;
+import org.junit.Test;
+
+import static org.apache.jackrabbit.oak.plugins.index.IndexConstants.INDEX_DEFINITIONS_NAME;
+import static org.apache.jackrabbit.oak.plugins.index.IndexConstants.REINDEX_PROPERTY_NAME;
+import static org.apache.jackrabbit.oak.plugins.index.IndexConstants.TYPE_PROPERTY_NAME;
+import static org.apache.jackrabbit.oak.plugins.memory.EmptyNodeState.EMPTY_NODE;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+
+/**
+ * Testcase for {@link com.github.tteofili.apacheconeu14.oak.search.util.QueryIndexRegistry}
+ */
+public class QueryIndexRegistryTest {
+
+    @Test
+    public void testIndexesRebuiltOnlyOnDefinitionChanges() throws Exception {
+        QueryIndexRegistry registry = new QueryIndexRegistry("nls") {
+            @Override
+            protected QueryIndex createIndex(String path, NodeState definition) throws Exception {
+                return new NLSQueryIndex();
+            }
+        };
+
+        NodeBuilder builder = EMPTY_NODE.builder();
+        NodeBuilder definition = builder.child(INDEX_DEFINITIONS_NAME).child("nls");
+        definition.setProperty(TYPE_PROPERTY_NAME, "nls");
+        builder.child(INDEX_DEFINITIONS_NAME).child("other").setProperty(TYPE_PROPERTY_NAME, "es");
+
+        List<QueryIndex> indexes = registry.getQueryIndexes(builder.getNodeState());
+        assertEquals(1, indexes.size());
+        QueryIndex index = indexes.get(0);
+        assertSame(index, registry.getQueryIndexes(builder.getNodeState()).get(0));
+
+        // reindex flags and hidden content don't change the definition
+        definition.setProperty(REINDEX_PROPERTY_NAME, true);
+        definition.child(":data").setProperty("foo", "bar");
+        assertSame(index, registry.getQueryIndexes(builder.getNodeState()).get(0));
+
+        definition.setProperty("pageSize", 10L);
+        QueryIndex changed = registry.getQueryIndexes(builder.getNodeState()).get(0);
+        assertNotSame(index, changed);
+
+        // removed definitions are dropped
+        builder.child(INDEX_DEFINITIONS_NAME).getChildNode("nls").remove();
+        assertEquals(0, registry.getQueryIndexes(builder.getNodeState()).size());
+        builder.child(INDEX_DEFINITIONS_NAME).child("nls").setProperty(TYPE_PROPERTY_NAME, "nls");
+        builder.child(INDEX_DEFINITIONS_NAME).child("nls").setProperty("pageSize", 10L);
+        assertNotSame(changed, registry.getQueryIndexes(builder.getNodeState()).get(0));
+    }
+}
@@ -0,0 +1,166 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.tteofili.apacheconeu14.oak.search.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.jackrabbit.oak.api.Blob;
+import org.apache.jackrabbit.oak.plugins.memory.ArrayBasedBlob;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+/**
+ * Testcase for {@link com.github.tteofili.apacheconeu14.oak.search.util.TextExtractionService}
+ */
+public class TextExtractionServiceTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testPlainTextExtraction() throws Exception {
+        PlainTextExtractor extractor = new PlainTextExtractor();
+        assertEquals("caf\u00e9 au lait", extractor.extract(blob("caf\u00e9 au lait".getBytes("UTF-8"), null), 100));
+        assertEquals("caf", extractor.extract(blob("caf\u00e9 au lait".getBytes("UTF-8"), null), 3));
+        assertNull(extractor.extract(blob(new byte[]{(byte) 0xff, (byte) 0xfe, 0x00}, null), 100));
+        assertNull(extractor.extract(blob(new byte[]{'a', 0x00, 'b'}, null), 100));
+    }
+
+    @Test
+    public void testExtractionCachedByContentIdentity() throws Exception {
+        File directory = folder.newFolder();
+        CountingExtractor extractor = new CountingExtractor();
+        TextExtractionService service = new TextExtractionService(extractor, new ExtractedTextCache(directory, 1000),
+                1, 10, 1024, 1000, 1000);
+        try {
+            assertEquals("some text", getText(service, blob("some text".getBytes("UTF-8"), "id1")));
+            assertEquals("some text", service.getText(blob("some text".getBytes("UTF-8"), "id1")));
+            assertEquals(1, extractor.count.get());
+
+            // binaries without an identity are extracted in the background too, their texts are kept by instance
+            Blob anonymous = blob("some text".getBytes("UTF-8"), null);
+            assertEquals("some text", getText(service, anonymous));
+            assertEquals("some text", service.getText(anonymous));
+            assertEquals("some text", getText(service, blob("some text".getBytes("UTF-8"), null)));
+
+            // too big ones aren't extracted at all
+            assertNull(service.getText(blob(new byte[2048], "id2")));
+            assertEquals(3, extractor.count.get());
+        } finally {
+            service.close();
+        }
+
+        // the extracted texts survive restarts
+        service = new TextExtractionService(extractor, new ExtractedTextCache(directory, 1000), 1, 10, 1024, 1000, 1000);
+        try {
+            assertEquals("some text", service.getText(blob("some text".getBytes("UTF-8"), "id1")));
+            assertEquals(3, extractor.count.get());
+        } finally {
+            service.close();
+        }
+    }
+
+    @Test
+    public void testFailuresAndTimeoutsNotCached() throws Exception {
+        final AtomicInteger count = new AtomicInteger();
+        TextExtractor extractor = new PlainTextExtractor() {
+            @Override
+            public String extract(Blob blob, int maxLength) throws IOException {
+                if (count.incrementAndGet() == 1) {
+                    throw new IOException("broken");
+                }
+                if (count.get() == 2) {
+                    try {
+                        Thread.sleep(10000);
+                    } catch (InterruptedException e) {
+                        throw new IOException("interrupted");
+                    }
+                }
+                return super.extract(blob, maxLength);
+            }
+        };
+        TextExtractionService service = new TextExtractionService(extractor, new ExtractedTextCache(null, 1000),
+                1, 10, 1024, 1000, 200);
+        try {
+            // the failed extraction isn't cached, the next one times out, the third one succeeds
+            assertNull(getText(service, blob("some text".getBytes("UTF-8"), "id1")));
+            assertNull(getText(service, blob("some text".getBytes("UTF-8"), "id1")));
+            assertEquals("some text", getText(service, blob("some text".getBytes("UTF-8"), "id1")));
+            assertEquals(3, count.get());
+
+            // binaries without text are cached as such
+            assertNull(getText(service, blob(new byte[]{'a', 0x00, 'b'}, "id2")));
+            assertNull(service.getText(blob(new byte[]{'a', 0x00, 'b'}, "id2")));
+            assertEquals(4, count.get());
+        } finally {
+            service.close();
+        }
+    }
+
+    /**
+     * @return the text of the blob once extracted in the background, {@code null} if none is extracted in time
+     */
+    private static String getText(TextExtractionService service, Blob blob) throws Exception {
+        final CountDownLatch pending = new CountDownLatch(1);
+        final CountDownLatch extracted = new CountDownLatch(1);
+        String text = service.getText(blob, new TextExtractionService.Callback() {
+            @Override
+            public void pending(Blob blob) {
+                pending.countDown();
+            }
+
+            @Override
+            public void extracted(Blob blob) {
+                extracted.countDown();
+            }
+        });
+        assertNull(text);
+        assertEquals(0, pending.getCount());
+        // missing texts aren't notified, give up after longer than the timeout
+        if (!extracted.await(1, TimeUnit.SECONDS)) {
+            return null;
+        }
+        return service.getText(blob);
+    }
+
+    private static Blob blob(byte[] bytes, final String contentIdentity) {
+        return new ArrayBasedBlob(bytes) {
+            @Override
+            public String getContentIdentity() {
+                return contentIdentity;
+            }
+        };
+    }
+
+    private static class CountingExtractor extends PlainTextExtractor {
+        private final AtomicInteger count = new AtomicInteger();
+
+        @Override
+        public String extract(Blob blob, int maxLength) throws IOException {
+            count.incrementAndGet();
+            return super.extract(blob, maxLength);
+        }
+    }
+}